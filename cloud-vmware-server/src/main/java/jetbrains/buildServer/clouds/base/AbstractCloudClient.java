@@ -54,8 +54,26 @@ public abstract class AbstractCloudClient<G extends AbstractCloudInstance<T>, T
   private volatile boolean myIsInitialized = false;
 
   public AbstractCloudClient(@NotNull final CloudClientParameters params, @NotNull final CloudApiConnector apiConnector) {
+    this(params, apiConnector, new CloudAsyncTaskExecutor("Async tasks for cloud " + params.getProfileDescription()));
+  }
+
+  /**
+   * @see CloudAsyncTaskExecutor#CloudAsyncTaskExecutor(String, int, int, boolean)
+   */
+  public AbstractCloudClient(@NotNull final CloudClientParameters params,
+                             @NotNull final CloudApiConnector apiConnector,
+                             final int pollingThreads,
+                             final int blockingThreads,
+                             final boolean useVirtualThreads) {
+    this(params, apiConnector, new CloudAsyncTaskExecutor("Async tasks for cloud " + params.getProfileDescription(),
+                                                          pollingThreads, blockingThreads, useVirtualThreads));
+  }
+
+  private AbstractCloudClient(@NotNull final CloudClientParameters params,
+                              @NotNull final CloudApiConnector apiConnector,
+                              @NotNull final CloudAsyncTaskExecutor asyncTaskExecutor) {
     myParameters = params;
-    myAsyncTaskExecutor = new CloudAsyncTaskExecutor("Async tasks for cloud " + params.getProfileDescription());
+    myAsyncTaskExecutor = asyncTaskExecutor;
     myImageMap = new HashMap<String, T>();
     myErrorProvider = new CloudErrorMap(VmwareErrorMessages.getInstance());
     myApiConnector = apiConnector;
@@ -22,10 +22,13 @@ import com.intellij.openapi.diagnostic.Logger;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import jetbrains.buildServer.util.NamedThreadFactory;
 import jetbrains.buildServer.util.ThreadUtil;
 import jetbrains.buildServer.util.executors.ExecutorsFactory;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * @author Sergey.Pak
@@ -36,16 +39,44 @@ public class CloudAsyncTaskExecutor {
 
   private static final Logger LOG = Logger.getInstance(CloudAsyncTaskExecutor.class.getName());
   private static final long LONG_TASK_TIME = 60*1000l;
+  private static final int DEFAULT_POLLING_THREADS = 2;
+  private static final int DEFAULT_BLOCKING_THREADS = 4;
 
+  // periodic checks and updates
   private final ScheduledExecutorService myExecutor;
+  // one-off operations which might block on the remote calls for a long time
+  private final ExecutorService myBlockingExecutor;
+  private final AtomicInteger myQueuedCount = new AtomicInteger();
+  private final AtomicInteger myActiveCount = new AtomicInteger();
+  private final AtomicLong myTotalWaitTime = new AtomicLong();
+  private final AtomicLong myMaxWaitTime = new AtomicLong();
+  private final AtomicLong myStartedCount = new AtomicLong();
   private final ConcurrentMap<AsyncCloudTask, TaskCallbackHandler> myExecutingTasks;
   private final Map<AsyncCloudTask, Long> myLongTasks = new HashMap<AsyncCloudTask, Long>();
   private final String myPrefix;
 
   public CloudAsyncTaskExecutor(String prefix) {
+    this(prefix, DEFAULT_POLLING_THREADS, DEFAULT_BLOCKING_THREADS);
+  }
+
+  /**
+   * @param pollingThreads number of threads for the scheduled tasks and task state checks
+   * @param blockingThreads number of threads for the tasks passed to {@link #submit(String, Runnable)}
+   */
+  public CloudAsyncTaskExecutor(String prefix, int pollingThreads, int blockingThreads) {
+    this(prefix, pollingThreads, blockingThreads, false);
+  }
+
+  /**
+   * @param useVirtualThreads run the tasks passed to {@link #submit(String, Runnable)} on virtual threads (one per task),
+   *                          when the JVM supports them. Otherwise a pool of <code>blockingThreads</code> threads is used
+   */
+  public CloudAsyncTaskExecutor(String prefix, int pollingThreads, int blockingThreads, boolean useVirtualThreads) {
     myPrefix = prefix;
     myExecutingTasks = new ConcurrentHashMap<AsyncCloudTask, TaskCallbackHandler>();
-    myExecutor = ExecutorsFactory.newFixedScheduledDaemonExecutor(prefix, 2);
+    myExecutor = ExecutorsFactory.newFixedScheduledDaemonExecutor(prefix, Math.max(1, pollingThreads));
+    final ExecutorService virtualThreadsExecutor = useVirtualThreads ? createVirtualThreadsExecutor(prefix) : null;
+    myBlockingExecutor = virtualThreadsExecutor != null ? virtualThreadsExecutor : createBlockingExecutor(prefix, blockingThreads);
     scheduleWithFixedDelay("Check for tasks", new Runnable() {
       public void run() {
         checkTasks();
@@ -71,16 +102,104 @@ public class CloudAsyncTaskExecutor {
   }
 
   public Future<?> submit(final String taskName, final Runnable r){
-    return myExecutor.submit(new Runnable() {
-      public void run() {
-        try {
-          LOG.debug("Starting " + taskName);
-          NamedThreadFactory.executeWithNewThreadName(taskName, r);
-        } finally {
-          LOG.debug("Finished " + taskName);
+    final long submitTime = System.currentTimeMillis();
+    myQueuedCount.incrementAndGet();
+    try {
+      return myBlockingExecutor.submit(new Runnable() {
+        public void run() {
+          myQueuedCount.decrementAndGet();
+          myActiveCount.incrementAndGet();
+          recordWaitTime(System.currentTimeMillis() - submitTime);
+          try {
+            LOG.debug("Starting " + taskName);
+            NamedThreadFactory.executeWithNewThreadName(taskName, r);
+          } finally {
+            myActiveCount.decrementAndGet();
+            LOG.debug("Finished " + taskName);
+          }
         }
-      }
+      });
+    } catch (RejectedExecutionException ex) {
+      myQueuedCount.decrementAndGet();
+      throw ex;
+    }
+  }
+
+  /**
+   * @return number of submitted operations waiting for a free thread
+   */
+  public int getQueueSize(){
+    return myQueuedCount.get();
+  }
+
+  /**
+   * @return number of submitted operations being executed
+   */
+  public int getActiveCount(){
+    return myActiveCount.get();
+  }
+
+  /**
+   * @return number of the cloud tasks which are being watched
+   */
+  public int getExecutingTasksCount(){
+    return myExecutingTasks.size();
+  }
+
+  /**
+   * @return average time (ms) the submitted operations spent in the queue
+   */
+  public long getAverageWaitTime(){
+    final long count = myStartedCount.get();
+    return count == 0 ? 0 : myTotalWaitTime.get() / count;
+  }
+
+  /**
+   * @return maximum time (ms) a submitted operation spent in the queue
+   */
+  public long getMaxWaitTime(){
+    return myMaxWaitTime.get();
+  }
+
+  @NotNull
+  private static ExecutorService createBlockingExecutor(@NotNull final String prefix, final int threadsCount){
+    final AtomicInteger createdCount = new AtomicInteger();
+    final int poolSize = Math.max(1, threadsCount);
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+      final Thread thread = new Thread(r, prefix + " (blocking) " + createdCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
     });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * The plugin is compiled for Java 8, so the JDK 21 API is accessed via reflection.
+   * @return executor starting a virtual thread per task or null if virtual threads are not available
+   */
+  @Nullable
+  private static ExecutorService createVirtualThreadsExecutor(@NotNull final String prefix){
+    try {
+      final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix + " (virtual) ", 1L);
+      final ThreadFactory threadFactory = (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+      return (ExecutorService)Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, threadFactory);
+    } catch (Exception ex) {
+      LOG.info("Virtual threads are not available, will use the platform threads for " + prefix + ": " + ex.toString());
+      return null;
+    }
+  }
+
+  private void recordWaitTime(final long waitTime){
+    myStartedCount.incrementAndGet();
+    myTotalWaitTime.addAndGet(waitTime);
+    myMaxWaitTime.accumulateAndGet(waitTime, Math::max);
+    if (waitTime > LONG_TASK_TIME) {
+      LOG.info(String.format("%s: operation waited %d seconds for a free thread. Queue size: %d, active: %d",
+                             myPrefix, waitTime / 1000, getQueueSize(), getActiveCount()));
+    }
   }
 
   private void checkTasks() {
@@ -128,6 +247,7 @@ public class CloudAsyncTaskExecutor {
 
   public void dispose(){
     ThreadUtil.shutdownNowAndWait(myExecutor, myPrefix);
+    ThreadUtil.shutdownNowAndWait(myBlockingExecutor, myPrefix);
     myExecutingTasks.clear();
   }
 
@@ -148,6 +148,7 @@ public class UpdateInstancesTask< G extends AbstractCloudInstance<T>,
         image.detectNewInstances(realInstances);
       }
       myClient.updateErrors();
+      instancesUpdated();
     } catch (CheckedCloudException e) {
       LOG.warnAndDebugDetails("An error occurred during updateInstanceTask", e);
       if (myRethrowException){
@@ -162,6 +163,12 @@ public class UpdateInstancesTask< G extends AbstractCloudInstance<T>,
     }
   }
 
+  /**
+   * Called after the instances of all the images have been updated from the API
+   */
+  protected void instancesUpdated() {
+  }
+
   @NotNull
   protected Collection<T> getImages() {
     return myClient.getImages();
@@ -22,16 +22,24 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.text.StringUtil;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import jetbrains.buildServer.clouds.CloudClientParameters;
 import jetbrains.buildServer.clouds.CloudImage;
 import jetbrains.buildServer.clouds.CloudProfile;
+import jetbrains.buildServer.clouds.InstanceStatus;
 import jetbrains.buildServer.clouds.base.AbstractCloudClient;
 import jetbrains.buildServer.clouds.base.tasks.UpdateInstancesTask;
 import jetbrains.buildServer.clouds.vmware.connector.VMWareApiConnector;
 import jetbrains.buildServer.clouds.vmware.tasks.VmwareUpdateTaskManager;
 import jetbrains.buildServer.clouds.vmware.web.VMWareWebConstants;
 import jetbrains.buildServer.serverSide.AgentDescription;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -49,20 +57,36 @@ public class VMWareCloudClient extends AbstractCloudClient<VmwareCloudInstance,
   private final Integer myProfileInstancesLimit;
   private final List<DisposeHandler> myDisposeHandlers = new ArrayList<>();
   private volatile boolean myInitialized = false;
+  @Nullable private VmwarePredictiveScaler myPredictiveScaler;
+  @NotNull private final VmwareInventorySnapshot myInventorySnapshot;
+  // instances to restore while the images are created, see VmwareConstants.WARM_START
+  @Nullable private Map<String, List<VmwareInventorySnapshot.Entry>> myWarmStartEntries;
 
 
   public VMWareCloudClient(@NotNull final CloudProfile profile,
                            @NotNull final VMWareApiConnector apiConnector,
                            @NotNull final VmwareUpdateTaskManager taskManager,
                            @NotNull final File idxStorage) {
-    super(profile.getParameters(), apiConnector);
+    super(profile.getParameters(), apiConnector,
+          getThreadsCount(profile.getParameters(), VmwareConstants.EXECUTOR_POLLING_THREADS, 2),
+          getThreadsCount(profile.getParameters(), VmwareConstants.EXECUTOR_BLOCKING_THREADS, 4),
+          TeamCityProperties.getBoolean(VmwareConstants.EXECUTOR_VIRTUAL_THREADS));
     myTaskManager = taskManager;
     myIdxStorage = idxStorage;
     myProfile = profile;
+    myInventorySnapshot = new VmwareInventorySnapshot(idxStorage, profile.getProfileId());
     final String limitStr = profile.getParameters().getParameter(VMWareWebConstants.PROFILE_INSTANCE_LIMIT);
     myProfileInstancesLimit = StringUtil.isEmpty(limitStr) ? null : Integer.valueOf(limitStr);
   }
 
+  /**
+   * Profile parameter overrides the server-wide internal property
+   */
+  private static int getThreadsCount(@NotNull final CloudClientParameters params, @NotNull final String name, final int defaultValue){
+    final int profileValue = StringUtil.parseInt(params.getParameter(name), 0);
+    return profileValue > 0 ? profileValue : TeamCityProperties.getInteger(name, defaultValue);
+  }
+
   @Override
   public boolean isInitialized() {
     return myInitialized;
@@ -83,23 +107,71 @@ public class VMWareCloudClient extends AbstractCloudClient<VmwareCloudInstance,
   @Override
   protected VmwareCloudImage checkAndCreateImage(@NotNull final VmwareCloudImageDetails imageDetails) {
     final VMWareApiConnector apiConnector = (VMWareApiConnector)myApiConnector;
-    return new VmwareCloudImage(apiConnector, imageDetails, myAsyncTaskExecutor, myIdxStorage, myProfile);
+    final VmwareCloudImage image = new VmwareCloudImage(apiConnector, imageDetails, myAsyncTaskExecutor, myIdxStorage, myProfile);
+    if (myWarmStartEntries != null) {
+      restoreInstances(image, myWarmStartEntries.getOrDefault(image.getId(), Collections.emptyList()));
+    }
+    return image;
+  }
+
+  private static void restoreInstances(@NotNull final VmwareCloudImage image, @NotNull final List<VmwareInventorySnapshot.Entry> entries){
+    for (VmwareInventorySnapshot.Entry entry : entries) {
+      final InstanceStatus status = entry.getStatus();
+      if (entry.getName() == null || status == null)
+        continue;
+      final VmwareCloudInstance instance = new VmwareCloudInstance(image, entry.getName(), entry.getSourceState());
+      instance.setVmId(entry.getVmId());
+      instance.setStatus(status);
+      image.addInstance(instance);
+    }
+  }
+
+  @Override
+  public void populateImagesData(@NotNull final Collection<VmwareCloudImageDetails> imageDetails, final long initialDelayMs, final long delayMs) {
+    final List<VmwareInventorySnapshot.Entry> entries = TeamCityProperties.getBoolean(VmwareConstants.WARM_START)
+                                                        ? myInventorySnapshot.load(TeamCityProperties.getLong(VmwareConstants.WARM_START_MAX_AGE, 60) * 60 * 1000)
+                                                        : null;
+    if (entries != null) {
+      myWarmStartEntries = entries.stream().filter(e -> e.getImageId() != null).collect(Collectors.groupingBy(VmwareInventorySnapshot.Entry::getImageId));
+    }
+    try {
+      super.populateImagesData(imageDetails, initialDelayMs, delayMs);
+    } finally {
+      myWarmStartEntries = null;
+    }
+    if (entries != null) {
+      // the first update reconciles the restored instances with vCenter in background
+      myInitialized = true;
+      LOG.info(String.format("Cloud profile '%s' started with %d instances from the inventory snapshot", myParameters.getProfileDescription(), entries.size()));
+    }
+    if (TeamCityProperties.getBoolean(VmwareConstants.PREDICTIVE_SCALING)) {
+      myPredictiveScaler = new VmwarePredictiveScaler(this);
+      final long interval = TeamCityProperties.getLong(VmwareConstants.PREDICTIVE_SCALING_INTERVAL, 5 * 60);
+      myAsyncTaskExecutor.scheduleWithFixedDelay("Predictive scaling", myPredictiveScaler, interval, interval, TimeUnit.SECONDS);
+    }
   }
 
   @Override
   public boolean canStartNewInstance(@NotNull final CloudImage baseImage) {
-    if (myProfileInstancesLimit != null) {
-      final AtomicLong count = new AtomicLong(0);
-      myImageMap.forEach((s, img) -> {
-        count.addAndGet(img.getInstances().stream().filter(i -> i.getStatus().isCanTerminate()).count());
-      });
-      if (count.get() >= myProfileInstancesLimit){
-        return false;
-      }
+    if (myProfileInstancesLimit != null && getActiveInstancesCount() >= myProfileInstancesLimit){
+      return false;
     }
     return super.canStartNewInstance(baseImage);
   }
 
+  public int getActiveInstancesCount() {
+    final AtomicLong count = new AtomicLong(0);
+    myImageMap.forEach((s, img) -> {
+      count.addAndGet(img.getInstances().stream().filter(i -> i.getStatus().isCanTerminate()).count());
+    });
+    return (int)count.get();
+  }
+
+  @Nullable
+  public Integer getProfileInstancesLimit() {
+    return myProfileInstancesLimit;
+  }
+
   @NotNull
   @Override
   protected UpdateInstancesTask<VmwareCloudInstance, VmwareCloudImage, VMWareCloudClient> createUpdateInstancesTask() {
@@ -124,9 +196,16 @@ public class VMWareCloudClient extends AbstractCloudClient<VmwareCloudInstance,
         LOG.warn("An exception occurred while disposing client", e);
       }
     });
+    if (myPredictiveScaler != null) {
+      myPredictiveScaler.dispose();
+    }
     super.dispose();
   }
 
+  public void saveInventorySnapshot() {
+    myInventorySnapshot.save(getImages());
+  }
+
   public void setInitializedIfNecessary() {
     if (!myInitialized)
       myInitialized = true;
@@ -0,0 +1,235 @@
+/*
+ *
+ *  * Copyright 2000-2017 JetBrains s.r.o.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package jetbrains.buildServer.clouds.vmware;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Hands out the clone indexes of the images.
+ * <br/>
+ * The indexes are reserved in blocks in an append-only journal, locked while it's written, so the server nodes
+ * sharing the data directory never get the same index. The next block is reserved in background,
+ * when a half of the current one is used. The indexes reserved, but not used before a restart are skipped.
+ */
+public class VmwareCloneIndexAllocator {
+  private static final Logger LOG = Logger.getInstance(VmwareCloneIndexAllocator.class.getName());
+  private static final String JOURNAL_NAME = "cloneIndexes.journal";
+  private static final String IDX_EXTENSION = ".idx";
+  private static final int BLOCK_SIZE = 100;
+
+  private static final Map<File, VmwareCloneIndexAllocator> ALLOCATORS = new HashMap<>();
+  // a file lock doesn't guard the journal against the other threads of the same JVM
+  private static final Object JOURNAL_LOCK = new Object();
+  private static final ExecutorService RESERVE_EXECUTOR = ExecutorsFactory.newFixedDaemonExecutor("VMWare clone indexes reservation", 1);
+
+  private final File myIdxStorage;
+  private final File myJournal;
+  private final Map<String, SourceIndexes> mySources = new ConcurrentHashMap<>();
+  // the last reserved index by image, guarded by JOURNAL_LOCK
+  private final Map<String, Integer> myReserved = new HashMap<>();
+  private long myReadPosition = 0;
+
+  VmwareCloneIndexAllocator(@NotNull final File idxStorage) {
+    myIdxStorage = idxStorage;
+    myJournal = new File(idxStorage, JOURNAL_NAME);
+  }
+
+  @NotNull
+  public static VmwareCloneIndexAllocator getInstance(@NotNull final File idxStorage){
+    synchronized (ALLOCATORS) {
+      return ALLOCATORS.computeIfAbsent(idxStorage.getAbsoluteFile(), VmwareCloneIndexAllocator::new);
+    }
+  }
+
+  /**
+   * Reserves the first indexes of the image in background
+   */
+  public void prepare(@NotNull final String sourceId){
+    getSourceIndexes(sourceId).scheduleReserve();
+  }
+
+  /**
+   * @return the next clone index of the image. Reads the journal only if there are no reserved indexes left
+   * @throws IOException if the journal cannot be written
+   */
+  public int allocate(@NotNull final String sourceId) throws IOException {
+    return getSourceIndexes(sourceId).next();
+  }
+
+  @NotNull
+  private SourceIndexes getSourceIndexes(@NotNull final String sourceId){
+    return mySources.computeIfAbsent(sourceId, SourceIndexes::new);
+  }
+
+  @NotNull
+  private Block reserveBlock(@NotNull final String sourceId) throws IOException {
+    synchronized (JOURNAL_LOCK) {
+      try (FileChannel channel = FileChannel.open(myJournal.toPath(),
+                                                  StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+           FileLock ignored = channel.lock()) {
+        final boolean incompleteTail = readJournal(channel);
+        final File idxFile = new File(myIdxStorage, sourceId + IDX_EXTENSION);
+        final int reserved = myReserved.containsKey(sourceId) ? myReserved.get(sourceId) : readIdxFile(idxFile) - 1;
+        final int last = reserved + BLOCK_SIZE;
+        // the tail is left by a node which has crashed while writing, its indexes haven't been used
+        final String entry = (incompleteTail ? "\n" : "") + last + " " + sourceId + "\n";
+        final ByteBuffer buffer = ByteBuffer.wrap(entry.getBytes(StandardCharsets.UTF_8));
+        long position = channel.size();
+        while (buffer.hasRemaining()) {
+          position += channel.write(buffer, position);
+        }
+        channel.force(false);
+        myReadPosition = position;
+        myReserved.put(sourceId, last);
+        if (idxFile.exists()) {
+          // the index has been moved to the journal
+          FileUtil.delete(idxFile);
+        }
+        LOG.debug(String.format("Reserved clone indexes %d-%d of %s", reserved + 1, last, sourceId));
+        return new Block(reserved + 1, last);
+      }
+    }
+  }
+
+  /**
+   * Reads the entries written since the last read
+   *
+   * @return true if the journal ends with an incomplete entry
+   */
+  private boolean readJournal(@NotNull final FileChannel channel) throws IOException {
+    final long size = channel.size();
+    if (size < myReadPosition) {
+      // the journal has been replaced, the known reservations are kept
+      myReadPosition = 0;
+    }
+    if (size == myReadPosition) {
+      return false;
+    }
+    final ByteBuffer buffer = ByteBuffer.allocate((int)(size - myReadPosition));
+    while (buffer.hasRemaining() && channel.read(buffer, myReadPosition + buffer.position()) >= 0) {
+      // read the rest
+    }
+    final byte[] bytes = buffer.array();
+    int end = buffer.position();
+    while (end > 0 && bytes[end - 1] != '\n') {
+      end--;
+    }
+    for (String line : new String(bytes, 0, end, StandardCharsets.UTF_8).split("\n")) {
+      final int separator = line.indexOf(' ');
+      if (separator <= 0)
+        continue;
+      try {
+        myReserved.merge(line.substring(separator + 1), Integer.parseInt(line.substring(0, separator)), Math::max);
+      } catch (NumberFormatException e) {
+        LOG.debug("Skipping broken clone indexes entry: " + line);
+      }
+    }
+    myReadPosition += end;
+    return end < buffer.position();
+  }
+
+  /**
+   * @return the next index stored in the idx file of the image by the previous versions, 1 if there is no such file
+   */
+  private static int readIdxFile(@NotNull final File idxFile){
+    if (!idxFile.exists())
+      return 1;
+    try {
+      return Integer.parseInt(FileUtil.readText(idxFile).trim());
+    } catch (Exception e) {
+      LOG.warn(String.format("Unable to read idx file '%s': %s", idxFile.getAbsolutePath(), e.toString()));
+      return 1;
+    }
+  }
+
+  private class SourceIndexes {
+    private final String mySourceId;
+    private final AtomicBoolean myReserveScheduled = new AtomicBoolean();
+    private volatile Block myCurrent = new Block(1, 0);
+    // the next block reserved in background, guarded by this
+    private Block myNext;
+
+    private SourceIndexes(@NotNull final String sourceId) {
+      mySourceId = sourceId;
+    }
+
+    private int next() throws IOException {
+      while (true) {
+        final Block block = myCurrent;
+        final int idx = block.myNextIdx.getAndIncrement();
+        if (idx <= block.myLastIdx) {
+          if (idx == block.myLastIdx - BLOCK_SIZE / 2) {
+            scheduleReserve();
+          }
+          return idx;
+        }
+        synchronized (this) {
+          if (myCurrent == block) {
+            myCurrent = myNext != null ? myNext : reserveBlock(mySourceId);
+            myNext = null;
+          }
+        }
+      }
+    }
+
+    private void scheduleReserve(){
+      if (!myReserveScheduled.compareAndSet(false, true))
+        return;
+      RESERVE_EXECUTOR.submit(() -> {
+        try {
+          synchronized (this) {
+            if (myNext == null) {
+              myNext = reserveBlock(mySourceId);
+            }
+          }
+        } catch (IOException e) {
+          LOG.warn(String.format("Unable to reserve clone indexes of %s: %s", mySourceId, e.toString()));
+        } finally {
+          myReserveScheduled.set(false);
+        }
+      });
+    }
+  }
+
+  private static class Block {
+    private final AtomicInteger myNextIdx;
+    private final int myLastIdx;
+
+    private Block(final int firstIdx, final int lastIdx) {
+      myNextIdx = new AtomicInteger(firstIdx);
+      myLastIdx = lastIdx;
+    }
+  }
+}
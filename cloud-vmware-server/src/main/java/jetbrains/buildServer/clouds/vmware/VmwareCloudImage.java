@@ -22,9 +22,11 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.util.Function;
 import com.vmware.vim25.mo.Task;
 import java.io.File;
-import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import jetbrains.buildServer.clouds.CloudInstanceUserData;
 import jetbrains.buildServer.clouds.CloudProfile;
@@ -36,11 +38,11 @@ import jetbrains.buildServer.clouds.base.connector.CloudAsyncTaskExecutor;
 import jetbrains.buildServer.clouds.base.connector.TaskCallbackHandler;
 import jetbrains.buildServer.clouds.base.errors.TypedCloudErrorInfo;
 import jetbrains.buildServer.clouds.vmware.connector.VMWareApiConnector;
+import jetbrains.buildServer.clouds.vmware.connector.VmwareCloneScheduler;
 import jetbrains.buildServer.clouds.vmware.connector.VmwareInstance;
 import jetbrains.buildServer.clouds.vmware.connector.VmwareTaskWrapper;
 import jetbrains.buildServer.clouds.vmware.errors.VmwareCheckedCloudException;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
-import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -61,8 +63,15 @@ public class VmwareCloudImage extends AbstractCloudImage<VmwareCloudInstance, Vm
   @NotNull private final CloudAsyncTaskExecutor myAsyncTaskExecutor;
   private final VmwareCloudImageDetails myImageDetails;
   private final AtomicReference<VmwareSourceState> myActualSourceState;
-  private final File myIdxFile;
+  private final VmwareCloneIndexAllocator myCloneIndexAllocator;
   private final CloudProfile myProfile;
+  // powered off clones of the latest snapshot, ready to be started instead of cloning (FRESH_CLONE only)
+  private final Deque<String> myWarmInstances = new ConcurrentLinkedDeque<>();
+  private final AtomicInteger myWarmingCount = new AtomicInteger();
+  private final AtomicBoolean myWarmPoolRefillScheduled = new AtomicBoolean();
+  private final VmwareDemandHistory myDemandHistory;
+  // clones expected to be requested soon, see VmwarePredictiveScaler
+  private volatile int myPredictedDemand = 0;
 
   public VmwareCloudImage(@NotNull final VMWareApiConnector apiConnector,
                           @NotNull final VmwareCloudImageDetails imageDetails,
@@ -75,14 +84,9 @@ public class VmwareCloudImage extends AbstractCloudImage<VmwareCloudInstance, Vm
     myAsyncTaskExecutor = asyncTaskExecutor;
     myProfile = profile;
     myActualSourceState = new AtomicReference<>();
-    myIdxFile = new File(idxStorage, imageDetails.getSourceId() + ".idx");
-    if (!myIdxFile.exists()){
-      try {
-        FileUtil.writeFileAndReportErrors(myIdxFile, "1");
-      } catch (IOException e) {
-        LOG.warn(String.format("Unable to write idx file '%s': %s", myIdxFile.getAbsolutePath(), e.toString()));
-      }
-    }
+    myDemandHistory = new VmwareDemandHistory(new File(idxStorage, imageDetails.getSourceId() + ".demand"));
+    myCloneIndexAllocator = VmwareCloneIndexAllocator.getInstance(idxStorage);
+    myCloneIndexAllocator.prepare(imageDetails.getSourceId());
   }
 
   @NotNull
@@ -153,6 +157,8 @@ public class VmwareCloudImage extends AbstractCloudImage<VmwareCloudInstance, Vm
 
   @Override
   public synchronized VmwareCloudInstance startNewInstance(@NotNull final CloudInstanceUserData cloudInstanceUserData) throws QuotaException{
+    // the requests over the limits are the demand too
+    myDemandHistory.recordRequest(System.currentTimeMillis());
     final VmwareCloudInstance instanceCandidate = getStartableInstanceFast();
     instanceCandidate.setStatus(InstanceStatus.SCHEDULED_TO_START);
     myAsyncTaskExecutor.submit("Preparing to start new instance...", () -> {
@@ -199,8 +205,17 @@ public class VmwareCloudImage extends AbstractCloudImage<VmwareCloudInstance, Vm
             }
           }
 
+          if (willClone && getWarmPoolTarget() > 0) {
+            final VmwareCloudInstance warmInstance = claimWarmInstance(sourceState);
+            if (warmInstance != null) {
+              removeInstance(instance.getInstanceId());
+              instance = warmInstance;
+              willClone = false;
+            }
+          }
+
           LOG.info("Should clone into " + instance.getName() + ": " + willClone);
-          if (willClone && myImageDetails.getMaxInstances() < getInstances().size()) {
+          if (willClone && myImageDetails.getMaxInstances() < getInstances().size() - myWarmInstances.size()) {
             LOG.info("Cannot clone - instances limit exceeded. Will try to clean up some old instances");
             cleanupOldInstances();
             // don't attempt to start so far
@@ -209,10 +224,21 @@ public class VmwareCloudImage extends AbstractCloudImage<VmwareCloudInstance, Vm
           }
         }
 
-        if (willClone) {
+        if (willClone && isBatchedStart()) {
+          final VmwareCloudInstance finalInstance = instance;
+          executeClone(
+            new VmwareTaskWrapper(() -> myApiConnector.cloneAndStartVm(finalInstance, cloudInstanceUserData), "Clone and start instance " + instance.getName()),
+            new ImageStatusTaskWrapper(instance) {
+              @Override
+              public void onSuccess() {
+                // the agent configuration came with the clone spec
+                markStarted(finalInstance);
+              }
+            });
+        } else if (willClone) {
 
           final VmwareCloudInstance finalInstance = instance;
-          myAsyncTaskExecutor.executeAsync(
+          executeClone(
             new VmwareTaskWrapper(() -> myApiConnector.cloneAndStartVm(finalInstance), "Clone and start instance " + instance.getName()),
             new ImageStatusTaskWrapper(instance) {
               @Override
@@ -237,6 +263,212 @@ public class VmwareCloudImage extends AbstractCloudImage<VmwareCloudInstance, Vm
     return instanceCandidate;
   }
 
+  @Nullable
+  private VmwareCloudInstance claimWarmInstance(@NotNull final VmwareSourceState sourceState) {
+    try {
+      String instanceId;
+      while ((instanceId = myWarmInstances.poll()) != null) {
+        final VmwareCloudInstance instance = findInstanceById(instanceId);
+        if (instance == null || instance.getStatus() != InstanceStatus.STOPPED)
+          continue;
+        if (!sourceState.equals(instance.getSourceState())) {
+          LOG.info(String.format("Warm instance %s is outdated: %s", instanceId, sourceState.getDiffMessage(instance.getSourceState())));
+          deleteInstance(instance);
+          continue;
+        }
+        LOG.info("Will use warm instance " + instanceId);
+        return instance;
+      }
+      return null;
+    } finally {
+      scheduleWarmPoolRefill();
+    }
+  }
+
+  private void scheduleWarmPoolRefill() {
+    if (getWarmPoolTarget() <= 0 && myWarmInstances.isEmpty() || !myWarmPoolRefillScheduled.compareAndSet(false, true))
+      return;
+    myAsyncTaskExecutor.submit("Refill warm pool of " + getName(), () -> {
+      try {
+        refillWarmPool();
+      } finally {
+        myWarmPoolRefillScheduled.set(false);
+      }
+    });
+  }
+
+  private void refillWarmPool() {
+    if (myImageDetails.useCurrentVersion()) {
+      LOG.debug("Warm pool is not supported for " + getName() + ": no snapshot is selected");
+      return;
+    }
+    final int target = getWarmPoolTarget();
+    if (getMissingWarmInstancesCount(target) <= 0) {
+      // the expected demand has passed
+      while (myWarmInstances.size() > target) {
+        final String instanceId = myWarmInstances.poll();
+        final VmwareCloudInstance instance = instanceId == null ? null : findInstanceById(instanceId);
+        if (instance != null && instance.getStatus() == InstanceStatus.STOPPED) {
+          LOG.info("Warm instance " + instanceId + " is not needed anymore");
+          deleteInstance(instance);
+        }
+      }
+      return;
+    }
+
+    final VmwareSourceState sourceState;
+    try {
+      final VmwareInstance sourceVm = myApiConnector.getInstanceDetails(myImageDetails.getSourceVmName());
+      final String snapshotName = myApiConnector.getLatestSnapshot(sourceVm.getId(), myImageDetails.getSnapshotName());
+      if (snapshotName == null) {
+        LOG.debug("Won't refill warm pool of " + getName() + ": no such snapshot " + myImageDetails.getSnapshotName());
+        return;
+      }
+      sourceState = VmwareSourceState.from(snapshotName, sourceVm.getId());
+    } catch (VmwareCheckedCloudException e) {
+      LOG.warn("Unable to refill warm pool of " + getName() + ": " + e.toString());
+      return;
+    }
+
+    final List<VmwareCloudInstance> warmingInstances = new ArrayList<>();
+    synchronized (this) {
+      // the slots are reserved under the same lock as in startNewInstance, otherwise both could take the last ones
+      final int missing = getMissingWarmInstancesCount(target);
+      for (int i = 0; i < missing; i++) {
+        final VmwareCloudInstance instance = new VmwareCloudInstance(this, generateNewVmName(), sourceState);
+        // counted in the limits until the clone is ready
+        instance.setStatus(InstanceStatus.SCHEDULED_TO_START);
+        addInstance(instance);
+        myWarmingCount.incrementAndGet();
+        warmingInstances.add(instance);
+      }
+    }
+    if (warmingInstances.isEmpty())
+      return;
+
+    LOG.info(String.format("Will add %d instance(s) to warm pool of %s", warmingInstances.size(), getName()));
+    for (final VmwareCloudInstance instance : warmingInstances) {
+      executeClone(
+        new VmwareTaskWrapper(() -> myApiConnector.cloneWarmVm(instance), "Clone warm instance " + instance.getName()),
+        new ImageStatusTaskWrapper(instance) {
+          @Override
+          public void onComplete() {
+            myWarmingCount.decrementAndGet();
+          }
+
+          @Override
+          public void onSuccess() {
+            instance.setStatus(InstanceStatus.STOPPED);
+            myWarmInstances.add(instance.getInstanceId());
+          }
+        });
+    }
+  }
+
+  /**
+   * One slot is always left to the regular clones, so the warm pool never takes the whole limit
+   */
+  private synchronized int getMissingWarmInstancesCount(final int target) {
+    final int freeSlots = myImageDetails.getMaxInstances() - 1 - getInstances().size();
+    return Math.min(target - myWarmInstances.size() - myWarmingCount.get(), freeSlots);
+  }
+
+  private int getWarmPoolTarget() {
+    if (!myImageDetails.getBehaviour().isDeleteAfterStop())
+      return 0;
+    return Math.max(myImageDetails.getWarmPoolSize(), myPredictedDemand);
+  }
+
+  /**
+   * Sets the number of the clones expected to be requested soon. They are kept in the warm pool in addition to the configured ones
+   */
+  public void setPredictedDemand(final int predictedDemand) {
+    if (myPredictedDemand == predictedDemand)
+      return;
+    LOG.info(String.format("Predicted demand for %s changed from %d to %d", getName(), myPredictedDemand, predictedDemand));
+    myPredictedDemand = predictedDemand;
+    scheduleWarmPoolRefill();
+  }
+
+  /**
+   * @return number of the instances which are started or being started, the warm pool is not counted
+   */
+  public int getRunningInstancesCount() {
+    int count = 0;
+    for (VmwareCloudInstance instance : getInstances()) {
+      if (instance.getStatus() != InstanceStatus.STOPPED)
+        count++;
+    }
+    return Math.max(0, count - myWarmingCount.get());
+  }
+
+  @NotNull
+  public VmwareDemandHistory getDemandHistory() {
+    return myDemandHistory;
+  }
+
+  /**
+   * Picks up the warm instances left after restart, drops the outdated and the disappeared ones
+   */
+  private void reconcileWarmPool(@NotNull final Map<String, ? extends AbstractInstance> realInstances) {
+    final VmwareSourceState actualSourceState = myActualSourceState.get();
+    for (AbstractInstance realInstance : realInstances.values()) {
+      if (!(realInstance instanceof VmwareInstance))
+        continue;
+      final VmwareInstance vmInstance = (VmwareInstance)realInstance;
+      if (!vmInstance.isWarmClone() || vmInstance.getInstanceStatus() != InstanceStatus.STOPPED)
+        continue;
+      final VmwareCloudInstance instance = findInstanceById(vmInstance.getName());
+      if (instance == null || instance.getStatus() != InstanceStatus.STOPPED)
+        continue;
+      if (actualSourceState != null && !actualSourceState.equals(vmInstance.getVmSourceState())) {
+        LOG.info(String.format("Warm instance %s is outdated: %s", vmInstance.getName(), actualSourceState.getDiffMessage(vmInstance.getVmSourceState())));
+        myWarmInstances.remove(vmInstance.getName());
+        deleteInstance(instance);
+      } else if (!myWarmInstances.contains(vmInstance.getName())) {
+        myWarmInstances.add(vmInstance.getName());
+      }
+    }
+    myWarmInstances.removeIf(instanceId -> findInstanceById(instanceId) == null);
+    scheduleWarmPoolRefill();
+  }
+
+  /**
+   * Starts the clone task when the clone limits of the vCenter allow, see {@link VmwareCloneScheduler}
+   */
+  private void executeClone(@NotNull final VmwareTaskWrapper cloneTask, @NotNull final TaskCallbackHandler handler) {
+    if (!VmwareCloneScheduler.isEnabled()) {
+      myAsyncTaskExecutor.executeAsync(cloneTask, handler);
+      return;
+    }
+    Collection<String> resources;
+    try {
+      resources = myApiConnector.getCloneResources(myImageDetails.getSourceVmName());
+    } catch (VmwareCheckedCloudException e) {
+      LOG.warn("Unable to get clone resources of " + myImageDetails.getSourceVmName() + ", only the vCenter limit is applied: " + e.toString());
+      resources = Collections.emptyList();
+    }
+    myApiConnector.getCloneScheduler().submit(cloneTask.getName(), resources, r -> myAsyncTaskExecutor.submit(cloneTask.getName(), r), release ->
+      myAsyncTaskExecutor.executeAsync(cloneTask, new TaskCallbackHandler() {
+        @Override
+        public void onComplete() {
+          release.run();
+          handler.onComplete();
+        }
+
+        @Override
+        public void onSuccess() {
+          handler.onSuccess();
+        }
+
+        @Override
+        public void onError(final Throwable error) {
+          release.run();
+          handler.onError(error);
+        }
+      }));
+  }
+
   private void cleanupOldInstances() {
     final long stoppedOrphanedTimeout = TeamCityProperties.getLong("teamcity.vmware.stopped.orphaned.timeout", STOPPED_ORPHANED_TIMEOUT);
     final Date considerTime = new Date(System.currentTimeMillis() - stoppedOrphanedTimeout);
@@ -257,6 +489,18 @@ public class VmwareCloudImage extends AbstractCloudImage<VmwareCloudInstance, Vm
   private synchronized void startVM(@NotNull final VmwareCloudInstance instance, @NotNull final CloudInstanceUserData cloudInstanceUserData) {
     instance.setStartDate(new Date());
     instance.setStatus(InstanceStatus.STARTING);
+    if (isBatchedStart()) {
+      // the VM is powered off, so the agent configuration is in place before the guest boots
+      myAsyncTaskExecutor.executeAsync(new VmwareTaskWrapper(
+        () -> myApiConnector.reconfigureInstance(instance, instance.getName(), cloudInstanceUserData), "Reconfigure " + instance.getName())
+        , new ImageStatusTaskWrapper(instance) {
+        @Override
+        public void onSuccess() {
+          powerOnReconfiguredVM(instance, cloudInstanceUserData);
+        }
+      });
+      return;
+    }
     myAsyncTaskExecutor.executeAsync(new VmwareTaskWrapper(new Callable<Task>() {
       public Task call() throws Exception {
         return myApiConnector.startInstance(instance, instance.getName(), cloudInstanceUserData);
@@ -270,6 +514,28 @@ public class VmwareCloudImage extends AbstractCloudImage<VmwareCloudInstance, Vm
     });
   }
 
+  private synchronized void powerOnReconfiguredVM(@NotNull final VmwareCloudInstance instance, @NotNull final CloudInstanceUserData cloudInstanceUserData) {
+    myAsyncTaskExecutor.executeAsync(new VmwareTaskWrapper(
+      () -> myApiConnector.startInstance(instance, instance.getName(), cloudInstanceUserData), "Start instance " + instance.getName())
+      , new ImageStatusTaskWrapper(instance) {
+      @Override
+      public void onSuccess() {
+        markStarted(instance);
+      }
+    });
+  }
+
+  private void markStarted(@NotNull final VmwareCloudInstance instance) {
+    instance.setStatus(InstanceStatus.RUNNING);
+    instance.setStartDate(new Date());
+    instance.updateErrors();
+    LOG.info("Instance started successfully");
+  }
+
+  private static boolean isBatchedStart() {
+    return TeamCityProperties.getBoolean(VmwareConstants.BATCHED_START_PIPELINE);
+  }
+
   private synchronized void reconfigureVmTask(@NotNull final VmwareCloudInstance instance, @NotNull final CloudInstanceUserData cloudInstanceUserData) {
     myAsyncTaskExecutor.executeAsync(new VmwareTaskWrapper(new Callable<Task>() {
       public Task call() throws Exception {
@@ -279,10 +545,7 @@ public class VmwareCloudImage extends AbstractCloudImage<VmwareCloudInstance, Vm
       , new ImageStatusTaskWrapper(instance) {
       @Override
       public void onSuccess() {
-        instance.setStatus(InstanceStatus.RUNNING);
-        instance.setStartDate(new Date());
-        instance.updateErrors();
-        LOG.info("Instance started successfully");
+        markStarted(instance);
       }
     });
   }
@@ -347,6 +610,9 @@ public class VmwareCloudImage extends AbstractCloudImage<VmwareCloudInstance, Vm
 
     final List<String> consideredInstances = new ArrayList<String>();
     for (VmwareCloudInstance instance : getInstances()) {
+      // warm clones are taken by the next start, they don't occupy the slots
+      if (myWarmInstances.contains(instance.getInstanceId()))
+        continue;
       if (instance.getStatus() != InstanceStatus.STOPPED || countStoppedVmsInLimit)
         consideredInstances.add(instance.getInstanceId());
     }
@@ -365,10 +631,9 @@ public class VmwareCloudImage extends AbstractCloudImage<VmwareCloudInstance, Vm
   protected String generateNewVmName() {
     int nextIdx;
     try {
-      nextIdx = Integer.parseInt(FileUtil.readText(myIdxFile));
-      FileUtil.writeFileAndReportErrors(myIdxFile, String.valueOf(nextIdx + 1));
+      nextIdx = myCloneIndexAllocator.allocate(getId());
     } catch (Exception e) {
-      LOG.warn("Will generate random clone index. Reason: unable to read idx file: " + e.toString());
+      LOG.warn("Will generate random clone index. Reason: unable to reserve clone indexes: " + e.toString());
       Random r = new Random();
       nextIdx = 100000 + r.nextInt(100000);
     }
@@ -385,7 +650,24 @@ public class VmwareCloudImage extends AbstractCloudImage<VmwareCloudInstance, Vm
   @Override
   protected VmwareCloudInstance createInstanceFromReal(final AbstractInstance realInstance) {
     final VmwareInstance vmwareInstance = (VmwareInstance) realInstance;
-    return new VmwareCloudInstance(this, realInstance.getName(), vmwareInstance.getVmSourceState());
+    final VmwareCloudInstance instance = new VmwareCloudInstance(this, realInstance.getName(), vmwareInstance.getVmSourceState());
+    instance.setVmId(vmwareInstance.getId());
+    return instance;
+  }
+
+  @Override
+  public void detectNewInstances(final Map<String, ? extends AbstractInstance> realInstances) {
+    super.detectNewInstances(realInstances);
+    // VMs of the instances we have started are discovered here for the first time
+    for (VmwareCloudInstance instance : getInstances()) {
+      final AbstractInstance realInstance = realInstances.get(instance.getInstanceId());
+      if (realInstance instanceof VmwareInstance) {
+        instance.setVmId(((VmwareInstance)realInstance).getId());
+      }
+    }
+    if (getWarmPoolTarget() > 0 || !myWarmInstances.isEmpty()) {
+      reconcileWarmPool(realInstances);
+    }
   }
 
   private void processStoppedInstances(final Function<VmwareInstance, Boolean> function)  {
@@ -38,6 +38,7 @@ public class VmwareCloudImageDetails implements CloudImageDetails {
   @NotNull private final String mySnapshotName;
   private final CloneBehaviour myCloneBehaviour;
   private final int myMaxInstances;
+  private final int myWarmPoolSize;
   private final String myCustomizationSpec;
   private final Integer myAgentPoolId;
   @NotNull private final String mySourceId;
@@ -45,6 +46,7 @@ public class VmwareCloudImageDetails implements CloudImageDetails {
   public VmwareCloudImageDetails(@NotNull final CloudImageParameters imageParameters){
     myCustomizationSpec = imageParameters.getParameter(VmwareConstants.CUSTOMIZATION_SPEC);
     myMaxInstances = StringUtil.parseInt(StringUtil.emptyIfNull(imageParameters.getParameter(VmwareConstants.MAX_INSTANCES)), 0);
+    myWarmPoolSize = StringUtil.parseInt(StringUtil.emptyIfNull(imageParameters.getParameter(VmwareConstants.WARM_POOL_SIZE)), 0);
     mySourceVmName = imageParameters.getParameter(VmwareConstants.SOURCE_VM_NAME);
     myFolderId = imageParameters.getParameter(VmwareConstants.FOLDER);
     myResourcePoolId = imageParameters.getParameter(VmwareConstants.RESOURCE_POOL);
@@ -90,6 +92,13 @@ public class VmwareCloudImageDetails implements CloudImageDetails {
     return myMaxInstances;
   }
 
+  /**
+   * @return number of powered off clones to keep ready for the FRESH_CLONE images
+   */
+  public int getWarmPoolSize() {
+    return myCloneBehaviour.isDeleteAfterStop() ? myWarmPoolSize : 0;
+  }
+
   public String getCustomizationSpec() {
     return myCustomizationSpec;
   }
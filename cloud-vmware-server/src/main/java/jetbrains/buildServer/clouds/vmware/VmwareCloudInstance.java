@@ -40,6 +40,8 @@ public class VmwareCloudInstance extends AbstractCloudInstance<VmwareCloudImage>
   @NotNull private volatile VmwareSourceState mySourceState = VmwareSourceState.from(null, null);
 
   private volatile boolean myIsReady = false;
+  // MOR value of the VM, null until the VM is discovered
+  @Nullable private volatile String myVmId;
 
   //
   protected VmwareCloudInstance(@NotNull final VmwareCloudImage image) {
@@ -69,6 +71,15 @@ public class VmwareCloudInstance extends AbstractCloudInstance<VmwareCloudImage>
     mySourceState = sourceState;
   }
 
+  @Nullable
+  public String getVmId() {
+    return myVmId;
+  }
+
+  public void setVmId(@Nullable final String vmId) {
+    myVmId = vmId;
+  }
+
   public boolean containsAgent(@NotNull final AgentDescription agentDescription) {
     final Map<String, String> configParams = agentDescription.getConfigurationParameters();
     return getInstanceId().equals(configParams.get(INSTANCE_NAME));
@@ -29,7 +29,29 @@ public class VmwareConstants {
   @NotNull public static final String TYPE = "vmw";
   @NotNull public static final String USE_LINKED_CLONE = "teamcity.clouds.vmware.use.linked.clone"; // true by default
   @NotNull public static final String DISABLE_OS_CUSTOMIZATION = "teamcity.clouds.vmware.disable.os.customization"; // false by default
+  @NotNull public static final String DATACENTER_PARALLELISM = "teamcity.clouds.vmware.inventory.datacenter.parallelism"; // 1 by default
+  @NotNull public static final String INVENTORY_PAGE_SIZE = "teamcity.clouds.vmware.inventory.page.size"; // 0 (paging is disabled) by default
+  @NotNull public static final String KEYED_EXTRA_CONFIG = "teamcity.clouds.vmware.inventory.keyed.extra.config"; // false by default
+  @NotNull public static final String INSTANCES_INDEX_TTL = "teamcity.clouds.vmware.instances.index.ttl.seconds"; // 0 (index is not used) by default
+  @NotNull public static final String DATACENTERS_CACHE_TTL = "teamcity.clouds.vmware.datacenters.cache.ttl"; // 10 minutes by default
+  @NotNull public static final String SESSION_HEARTBEAT_INTERVAL = "teamcity.clouds.vmware.session.heartbeat.interval.seconds"; // 5 minutes by default
+  @NotNull public static final String SESSIONS_POOL_SIZE = "teamcity.clouds.vmware.sessions.pool.size"; // 1 by default
+  @NotNull public static final String UI_CONNECTOR_IDLE_TIMEOUT = "teamcity.clouds.vmware.ui.connector.idle.timeout.seconds"; // 2 minutes by default
+  @NotNull public static final String EXECUTOR_POLLING_THREADS = "teamcity.clouds.vmware.executor.polling.threads"; // 2 by default, can be overridden in a profile
+  @NotNull public static final String EXECUTOR_BLOCKING_THREADS = "teamcity.clouds.vmware.executor.blocking.threads"; // 4 by default, can be overridden in a profile
+  @NotNull public static final String EXECUTOR_VIRTUAL_THREADS = "teamcity.clouds.vmware.executor.virtual.threads"; // false by default, requires JDK 21+
+  @NotNull public static final String BATCHED_START_PIPELINE = "teamcity.clouds.vmware.start.batched.pipeline"; // false by default
+  @NotNull public static final String PREDICTIVE_SCALING = "teamcity.clouds.vmware.predictive.scaling"; // false by default
+  @NotNull public static final String PREDICTIVE_SCALING_INTERVAL = "teamcity.clouds.vmware.predictive.scaling.interval.seconds"; // 5 minutes by default
+  @NotNull public static final String CLONE_LIMIT_PER_VCENTER = "teamcity.clouds.vmware.clone.limit.vcenter"; // 0 (unlimited) by default
+  @NotNull public static final String CLONE_LIMIT_PER_HOST = "teamcity.clouds.vmware.clone.limit.host"; // 0 (unlimited) by default
+  @NotNull public static final String CLONE_LIMIT_PER_DATASTORE = "teamcity.clouds.vmware.clone.limit.datastore"; // 0 (unlimited) by default
+  @NotNull public static final String SHUTDOWN_TIMEOUT = "teamcity.clouds.vmware.shutdown.timeout.seconds"; // 1 minute by default
+  @NotNull public static final String WARM_START = "teamcity.clouds.vmware.warm.start"; // false by default
+  @NotNull public static final String WARM_START_MAX_AGE = "teamcity.clouds.vmware.warm.start.max.age.minutes"; // 1 hour by default
+  @NotNull public static final String SCOPED_INVENTORY = "teamcity.clouds.vmware.inventory.scoped"; // false by default
   @NotNull public static final String CONSIDER_STOPPED_VMS_LIMIT = "teamcity.clouds.vmware.consider.stopped.vms.limit"; // true by default
+  @NotNull public static final String INCREMENTAL_INVENTORY = "teamcity.clouds.vmware.inventory.incremental"; // false by default
   @NotNull public static final String LATEST_SNAPSHOT = "*"; // true by default
   @NotNull public static final String CURRENT_STATE = "__CURRENT_STATE__";
   @NotNull public static final String DEFAULT_RESOURCE_POOL = "__DEFAULT_RESOURCE_POOL__";
@@ -42,5 +64,6 @@ public class VmwareConstants {
   public static final String SNAPSHOT = "snapshot";
   public static final String NICKNAME = "nickname";
   public static final String SOURCE_VM_NAME = "sourceVmName";
+  public static final String WARM_POOL_SIZE = "warmPoolSize";
 
 }
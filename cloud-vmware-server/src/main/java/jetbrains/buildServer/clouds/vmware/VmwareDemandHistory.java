@@ -0,0 +1,136 @@
+/*
+ *
+ *  * Copyright 2000-2017 JetBrains s.r.o.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package jetbrains.buildServer.clouds.vmware;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.TimeZone;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Weekly histogram of the start requests of an image.
+ * <br/>
+ * A week is split into half-hour slots, every slot keeps the average number of requests in it over the previous weeks.
+ * Older weeks weigh less, so the histogram follows the changes of the schedule in a couple of weeks.
+ */
+public class VmwareDemandHistory {
+  private static final Logger LOG = Logger.getInstance(VmwareDemandHistory.class.getName());
+
+  private static final int SLOTS_PER_DAY = 48;
+  private static final int SLOTS_COUNT = 7 * SLOTS_PER_DAY;
+  // weight of the previous weeks in the average
+  private static final double DECAY = 0.5;
+
+  @NotNull private final File myFile;
+  // average number of the requests over the completed weeks
+  private final double[] myAverages = new double[SLOTS_COUNT];
+  // number of the requests in the week the slot was last updated in
+  private final int[] myCounts = new int[SLOTS_COUNT];
+  private final long[] myWeeks = new long[SLOTS_COUNT];
+  private boolean myModified = false;
+
+  public VmwareDemandHistory(@NotNull final File file) {
+    myFile = file;
+    load();
+  }
+
+  public synchronized void recordRequest(final long time){
+    final int slot = getSlot(time);
+    final long week = getWeek(time);
+    if (myWeeks[slot] != week) {
+      myAverages[slot] = getAverage(slot, week);
+      myCounts[slot] = 0;
+      myWeeks[slot] = week;
+    }
+    myCounts[slot]++;
+    myModified = true;
+  }
+
+  /**
+   * @return expected number of the requests in the half-hour slot of the given time, according to the previous weeks
+   */
+  public synchronized int getExpectedRequests(final long time){
+    return (int)Math.round(getAverage(getSlot(time), getWeek(time)));
+  }
+
+  public synchronized void save(){
+    if (!myModified)
+      return;
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < SLOTS_COUNT; i++) {
+      if (myCounts[i] > 0 || myAverages[i] > 0) {
+        sb.append(i).append(' ').append(myWeeks[i]).append(' ').append(myCounts[i]).append(' ').append(myAverages[i]).append('\n');
+      }
+    }
+    try {
+      FileUtil.writeFileAndReportErrors(myFile, sb.toString());
+      myModified = false;
+    } catch (IOException e) {
+      LOG.warn(String.format("Unable to write demand history '%s': %s", myFile.getAbsolutePath(), e.toString()));
+    }
+  }
+
+  // the average of the slot over the weeks before the given one
+  private double getAverage(final int slot, final long week){
+    final long passed = week - myWeeks[slot];
+    if (passed <= 0)
+      return myAverages[slot];
+    final double average = DECAY * myAverages[slot] + (1 - DECAY) * myCounts[slot];
+    // no requests in the weeks between
+    return average * Math.pow(DECAY, passed - 1);
+  }
+
+  private void load(){
+    if (!myFile.exists())
+      return;
+    try {
+      for (String line : FileUtil.readText(myFile).split("\n")) {
+        final String[] parts = line.trim().split(" ");
+        if (parts.length != 4)
+          continue;
+        final int slot = Integer.parseInt(parts[0]);
+        if (slot < 0 || slot >= SLOTS_COUNT)
+          continue;
+        myWeeks[slot] = Long.parseLong(parts[1]);
+        myCounts[slot] = Integer.parseInt(parts[2]);
+        myAverages[slot] = Double.parseDouble(parts[3]);
+      }
+    } catch (Exception e) {
+      LOG.warn("Unable to read demand history from " + myFile.getAbsolutePath() + ": " + e.toString());
+    }
+  }
+
+  private static int getSlot(final long time){
+    final Calendar calendar = Calendar.getInstance(TimeZone.getDefault());
+    calendar.setTimeInMillis(time);
+    final int day = (calendar.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY + 6) % 7; // Monday is the first
+    final int slotOfDay = (calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE)) / 30;
+    return day * SLOTS_PER_DAY + slotOfDay;
+  }
+
+  private static long getWeek(final long time){
+    // local time, so a slot always belongs to the same week
+    final long localTime = time + TimeZone.getDefault().getOffset(time);
+    // 1970-01-01 is Thursday, shift the weeks to start on Monday
+    return (localTime + 3 * 24 * 60 * 60 * 1000L) / (7 * 24 * 60 * 60 * 1000L);
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ *
+ *  * Copyright 2000-2017 JetBrains s.r.o.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package jetbrains.buildServer.clouds.vmware;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import jetbrains.buildServer.clouds.InstanceStatus;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The last known instances of a cloud profile, saved after every successful update of the instances.
+ * <br/>
+ * Lets the profile serve its instances right after a server restart, while vCenter is being polled (see {@link VmwareConstants#WARM_START}).
+ * Only the instances in a permanent status with a known VM are saved.
+ */
+public class VmwareInventorySnapshot {
+  private static final Logger LOG = Logger.getInstance(VmwareInventorySnapshot.class.getName());
+  private static final Gson GSON = new Gson();
+
+  @NotNull private final File myFile;
+  @Nullable private String myLastContent;
+
+  public VmwareInventorySnapshot(@NotNull final File idxStorage, @NotNull final String profileId) {
+    myFile = new File(idxStorage, profileId + ".inventory");
+  }
+
+  public synchronized void save(@NotNull final Collection<VmwareCloudImage> images){
+    final List<Entry> entries = new ArrayList<>();
+    for (VmwareCloudImage image : images) {
+      for (VmwareCloudInstance instance : image.getInstances()) {
+        if (instance.getVmId() != null && instance.isInPermanentStatus()) {
+          entries.add(new Entry(instance));
+        }
+      }
+    }
+    final String content = GSON.toJson(entries);
+    try {
+      if (content.equals(myLastContent) && myFile.exists()) {
+        // the modification time tells how fresh the snapshot is
+        if (!myFile.setLastModified(System.currentTimeMillis())) {
+          LOG.debug("Unable to update modification time of " + myFile.getAbsolutePath());
+        }
+        return;
+      }
+      final File tmpFile = new File(myFile.getParentFile(), myFile.getName() + ".tmp");
+      Files.write(tmpFile.toPath(), content.getBytes(StandardCharsets.UTF_8));
+      Files.move(tmpFile.toPath(), myFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      myLastContent = content;
+    } catch (IOException e) {
+      LOG.warn(String.format("Unable to save inventory snapshot '%s': %s", myFile.getAbsolutePath(), e.toString()));
+    }
+  }
+
+  /**
+   * @return the saved instances, null if there is no snapshot or it's older than maxAgeMs
+   */
+  @Nullable
+  public List<Entry> load(final long maxAgeMs){
+    if (!myFile.exists())
+      return null;
+    final long age = System.currentTimeMillis() - myFile.lastModified();
+    if (age > maxAgeMs) {
+      LOG.info(String.format("Inventory snapshot '%s' is outdated (%d seconds old), won't use it", myFile.getAbsolutePath(), age / 1000));
+      return null;
+    }
+    try {
+      final List<Entry> entries = GSON.fromJson(FileUtil.readText(myFile), new TypeToken<List<Entry>>(){}.getType());
+      return entries == null ? Collections.emptyList() : entries;
+    } catch (Exception e) {
+      LOG.warn(String.format("Unable to read inventory snapshot '%s': %s", myFile.getAbsolutePath(), e.toString()));
+      return null;
+    }
+  }
+
+  public static class Entry {
+    private String name;
+    private String vmId;
+    private String status;
+    private String snapshotName;
+    private String sourceVmId;
+    private String imageId;
+
+    @SuppressWarnings("unused")
+    private Entry() {
+      // for Gson
+    }
+
+    private Entry(@NotNull final VmwareCloudInstance instance) {
+      name = instance.getName();
+      vmId = instance.getVmId();
+      status = instance.getStatus().name();
+      snapshotName = instance.getSourceState().getSnapshotName();
+      sourceVmId = instance.getSourceState().getSourceVmId();
+      imageId = instance.getImageId();
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getVmId() {
+      return vmId;
+    }
+
+    /**
+     * @return the saved status, null if it's unknown
+     */
+    @Nullable
+    public InstanceStatus getStatus() {
+      for (InstanceStatus instanceStatus : InstanceStatus.values()) {
+        if (instanceStatus.name().equals(status))
+          return instanceStatus;
+      }
+      return null;
+    }
+
+    @NotNull
+    public VmwareSourceState getSourceState() {
+      return VmwareSourceState.from(snapshotName, sourceVmId);
+    }
+
+    public String getImageId() {
+      return imageId;
+    }
+  }
+}
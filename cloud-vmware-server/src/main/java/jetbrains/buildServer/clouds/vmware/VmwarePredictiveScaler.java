@@ -0,0 +1,77 @@
+/*
+ *
+ *  * Copyright 2000-2017 JetBrains s.r.o.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package jetbrains.buildServer.clouds.vmware;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Prepares the clones of the images before the requests expected according to {@link VmwareDemandHistory}.
+ * <br/>
+ * The clones are kept in the warm pool of an image, so only the images which delete instances after stop are scaled.
+ * The number of clones is limited by the image and the profile limits.
+ */
+public class VmwarePredictiveScaler implements Runnable {
+  private static final Logger LOG = Logger.getInstance(VmwarePredictiveScaler.class.getName());
+  // cloning takes a few minutes, so the clones are prepared for the requests of the next slot
+  private static final long LOOKAHEAD = 15 * 60 * 1000L;
+
+  // the histories change once per a half-hour slot at most, no need to write them on every run
+  private static final long SAVE_INTERVAL = 30 * 60 * 1000L;
+
+  @NotNull private final VMWareCloudClient myClient;
+  private long myLastSaveTime = System.currentTimeMillis();
+
+  public VmwarePredictiveScaler(@NotNull final VMWareCloudClient client) {
+    myClient = client;
+  }
+
+  @Override
+  public void run() {
+    final long now = System.currentTimeMillis();
+    final long time = now + LOOKAHEAD;
+    final boolean shouldSave = now - myLastSaveTime >= SAVE_INTERVAL;
+    final Integer profileLimit = myClient.getProfileInstancesLimit();
+    int freeSlots = profileLimit == null ? Integer.MAX_VALUE : Math.max(0, profileLimit - myClient.getActiveInstancesCount());
+    for (VmwareCloudImage image : myClient.getImages()) {
+      if (!image.getImageDetails().getBehaviour().isDeleteAfterStop())
+        continue;
+      final VmwareDemandHistory history = image.getDemandHistory();
+      final int imageFreeSlots = Math.max(0, image.getImageDetails().getMaxInstances() - image.getRunningInstancesCount());
+      final int expected = Math.min(history.getExpectedRequests(time), Math.min(freeSlots, imageFreeSlots));
+      freeSlots -= expected;
+      if (expected > 0) {
+        LOG.debug(String.format("Expecting %d request(s) for %s", expected, image.getName()));
+      }
+      image.setPredictedDemand(expected);
+      if (shouldSave) {
+        history.save();
+      }
+    }
+    if (shouldSave) {
+      myLastSaveTime = now;
+    }
+  }
+
+  public void dispose() {
+    for (VmwareCloudImage image : myClient.getImages()) {
+      image.getDemandHistory().save();
+    }
+  }
+}
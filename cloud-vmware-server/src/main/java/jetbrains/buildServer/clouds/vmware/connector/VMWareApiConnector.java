@@ -55,6 +55,8 @@ public interface VMWareApiConnector extends CloudApiConnector<VmwareCloudImage,
   String TEAMCITY_VMWARE_CLONED_INSTANCE = TEAMCITY_VMWARE_PREFIX + "cloned.instance";
   String TEAMCITY_VMWARE_PROFILE_ID = TEAMCITY_VMWARE_PREFIX + CloudConstants.PROFILE_ID;
   String TEAMCITY_VMWARE_SERVER_UUID = TEAMCITY_VMWARE_PREFIX + "server.uuid";
+  // powered off clone waiting in the warm pool of its image
+  String TEAMCITY_VMWARE_WARM_CLONE = TEAMCITY_VMWARE_PREFIX + "warm.clone";
 
   void test() throws VmwareCheckedCloudException;
 
@@ -85,6 +87,29 @@ public interface VMWareApiConnector extends CloudApiConnector<VmwareCloudImage,
 
   Task cloneAndStartVm(@NotNull final VmwareCloudInstance instance) throws VmwareCheckedCloudException;
 
+  /**
+   * Same as {@link #cloneAndStartVm(VmwareCloudInstance)}, but the agent configuration is put into the clone spec,
+   * so the instance doesn't need to be reconfigured after the clone
+   */
+  Task cloneAndStartVm(@NotNull final VmwareCloudInstance instance, @NotNull final CloudInstanceUserData userData) throws VmwareCheckedCloudException;
+
+  /**
+   * Clones the VM for the warm pool of the image: the clone is not powered on and is marked with {@link #TEAMCITY_VMWARE_WARM_CLONE}
+   */
+  Task cloneWarmVm(@NotNull final VmwareCloudInstance instance) throws VmwareCheckedCloudException;
+
+  /**
+   * @return clone limits of the vCenter
+   */
+  @NotNull
+  VmwareCloneScheduler getCloneScheduler();
+
+  /**
+   * @return host and datastores the clones of the source VM are created on, see {@link VmwareCloneScheduler}
+   */
+  @NotNull
+  Collection<String> getCloneResources(@NotNull final String sourceVmName) throws VmwareCheckedCloudException;
+
   <T extends ManagedEntity> boolean hasPrivilegeOnResource(@NotNull final String entityId,
                                                            @NotNull final Class<T> instanceType,
                                                            @NotNull final String permission) throws VmwareCheckedCloudException;
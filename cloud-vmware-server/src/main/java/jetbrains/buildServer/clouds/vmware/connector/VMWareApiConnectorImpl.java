@@ -26,11 +26,16 @@ import com.vmware.vim25.*;
 import com.vmware.vim25.mo.*;
 import com.vmware.vim25.mo.util.MorUtil;
 import java.net.InetAddress;
-import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.rmi.RemoteException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
@@ -52,6 +57,7 @@ import jetbrains.buildServer.clouds.vmware.errors.VmwareCheckedCloudException;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.serverSide.crypt.EncryptUtil;
 import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -73,18 +79,31 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
   private static final Pattern FOLDER_PATTERN = Pattern.compile("group-v\\d+");
   private static final Pattern VM_PATTERN = Pattern.compile("vm-\\d+");
 
-  private static final String FOLDER_TYPE = Folder.class.getSimpleName();
-  private static final String RESPOOL_TYPE = ResourcePool.class.getSimpleName();
-  private static final String SPEC_FOLDER = "vm";
-  private static final String SPEC_RESPOOL = "Resources";
 
+  private static final long DATACENTERS_CACHE_TTL = 10 * 60 * 1000;
 
-  private static final long SHUTDOWN_TIMEOUT = 60 * 1000;
+  private static final String[] VM_TYPEINFO = {
+    "VirtualMachine", "name", "config.extraConfig", "config.template" , "config.changeVersion"
+    , "runtime.powerState", "runtime.bootTime",
+    "guest.ipAddress", "parent"
+  };
+  private static final String EXTRA_CONFIG = "config.extraConfig";
+  private static final String ROOT_SNAPSHOT_LIST = "snapshot.rootSnapshotList";
+  // what checkImages needs to know about the source VMs
+  private static final String[] SOURCE_VM_PROPERTIES = {"name", ROOT_SNAPSHOT_LIST};
+  // the same as VM_TYPEINFO, but only the extraConfig entries TeamCity reads are requested
+  private static final String[] VM_KEYED_TYPEINFO = Stream.concat(
+    Arrays.stream(VM_TYPEINFO).filter(path -> !EXTRA_CONFIG.equals(path)),
+    VmwareExtraConfig.getKeys().stream().map(key -> EXTRA_CONFIG + "[\"" + key + "\"]")
+  ).toArray(String[]::new);
 
   private final URL myInstanceURL;
   private final String myUsername;
   private final String myPassword;
-  private ServiceInstance myServiceInstance;
+  private final VmwareSessionPool mySessions;
+  // guest shutdowns of the stopping instances
+  private final VmwarePowerStateWatcher myPowerStateWatcher = new VmwarePowerStateWatcher();
+  private final VmwareSnapshotIndex mySnapshotIndex = new VmwareSnapshotIndex();
   private final String myDomain;
 
   // short living cache
@@ -92,11 +111,36 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
                                                                                         .expireAfterWrite(20, TimeUnit.SECONDS)
                                                                                         .build();
 
+  // datacenters are rarely changed, so the list is reloaded only when it gets old or a lookup misses.
+  // Only the references are kept, the datacenters are bound to the current session on every use
+  private volatile List<DatacenterInfo> myDatacenters;
+  private volatile long myDatacentersTimestamp;
+
+  // name -> VM of the latest inventory scan, used by the single VM lookups
+  private volatile Map<String, VmwareInstance> myInstancesIndex = new ConcurrentHashMap<>();
+  private volatile long myInstancesIndexTimestamp;
+
+  // folders, resource pools and source VMs used by the scoped inventory: "<datacenter>|<type>|<id or name>" -> reference.
+  // Misses are not cached, the entity might be created in another datacenter or a bit later
+  private final Cache<String, ManagedObjectReference> myScopeRoots = CacheBuilder.newBuilder()
+                                                                                   .expireAfterWrite(5, TimeUnit.MINUTES)
+                                                                                   .build();
+
+  // short living cache: datacenter -> paths. Folders and pools are usually requested together
+  private final Cache<String, VmwareInventoryPaths> myInventoryPaths = CacheBuilder.newBuilder()
+                                                                            .expireAfterWrite(20, TimeUnit.SECONDS)
+                                                                            .build();
+
   @Nullable private final String myServerUUID;
   // it can be null, when we create a temporary api connector for a short-term use (for example, when we prepopulate information on create/edit cloud profile page
   @Nullable private final String myProfileId;
   // we also create a separate connector for controller and which doesn't need this field
   @Nullable private final CloudInstancesProvider myInstancesProvider;
+  // null unless incremental inventory sync is enabled
+  @Nullable private final VmwareInventoryWatcher myInventoryWatcher;
+  // created on demand, when datacenters are queried in parallel
+  private ExecutorService myDatacenterExecutor;
+  private int myDatacenterExecutorSize;
 
 
   public VMWareApiConnectorImpl(@NotNull final URL instanceURL,
@@ -108,9 +152,14 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
     myInstanceURL = instanceURL;
     myUsername = username;
     myPassword = password;
+    mySessions = profileId == null
+                 ? new VmwareSessionPool(instanceURL, username, password, 1, false)
+                 : new VmwareSessionPool(instanceURL, username, password, TeamCityProperties.getInteger(VmwareConstants.SESSIONS_POOL_SIZE, 1), true);
     myServerUUID = serverUUID;
     myProfileId = profileId;
     myInstancesProvider = instancesProvider;
+    myInventoryWatcher = profileId != null && TeamCityProperties.getBoolean(VmwareConstants.INCREMENTAL_INVENTORY)
+                         ? new VmwareInventoryWatcher(getVmTypeInfo()) : null;
     myDomain = getTCServerDomain();
     if (myDomain == null){
       LOG.info("Unable to determine server domain. Linux guest hostname customization is disabled");
@@ -119,29 +168,31 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
     }
   }
 
-  private synchronized Folder getRootFolder() throws VmwareCheckedCloudException {
-    try {
-      if (myServiceInstance != null) {
-        final SessionManager sessionManager = myServiceInstance.getSessionManager();
-        if (sessionManager == null || sessionManager.getCurrentSession() == null) {
-          myServiceInstance = null;
-        }
-      }
-    } catch (Exception ex){
-      ex.printStackTrace();
-      myServiceInstance = null;
-    }
+  private Folder getRootFolder() throws VmwareCheckedCloudException {
+    return getServiceInstance().getRootFolder();
+  }
 
-    if (myServiceInstance == null){
-      try {
-        myServiceInstance = new ServiceInstance(myInstanceURL, myUsername, myPassword, true, 10*1000, 30*1000);
-      } catch (MalformedURLException e) {
-        throw new VmwareCheckedCloudException("Invalid server URL", e);
-      } catch (RemoteException e) {
-        throw new VmwareCheckedCloudException(e);
-      }
-    }
-    return myServiceInstance.getRootFolder();
+  @NotNull
+  private ServiceInstance getServiceInstance() throws VmwareCheckedCloudException {
+    return mySessions.getServiceInstance();
+  }
+
+  /**
+   * @return property collector of the session the object is bound to, so the calls on the object and on its contents fail together
+   */
+  @NotNull
+  private static PropertyCollector getPropertyCollector(@NotNull final ManagedObject bound) {
+    return bound.getServerConnection().getServiceInstance().getPropertyCollector();
+  }
+
+  /**
+   * Wraps the failure of a vCenter call. The session is dropped if it has expired, the next call will log in again
+   * @param target the object the call was made on, it tells which session has failed
+   */
+  @NotNull
+  private VmwareCheckedCloudException wrapException(@Nullable final ManagedObject target, @NotNull final RemoteException e){
+    mySessions.processException(target == null ? null : target.getServerConnection(), e);
+    return new VmwareCheckedCloudException(e);
   }
 
   private boolean isId(String idName, Class instanceType){
@@ -170,12 +221,16 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
         return searchManagedEntity(idName, instanceType, dc);
       }
     } catch (RemoteException e) {
-      throw new VmwareCheckedCloudException(e);
+      throw wrapException(dc, e);
     }
   }
 
   protected  <T extends ManagedEntity> T createExactManagedEntity(final ManagedObjectReference mor) {
-    return (T)MorUtil.createExactManagedEntity(myServiceInstance.getServerConnection(), mor);
+    try {
+      return (T)MorUtil.createExactManagedEntity(getServiceInstance().getServerConnection(), mor);
+    } catch (VmwareCheckedCloudException e) {
+      throw new CloudException(e.getMessage(), e);
+    }
   }
 
   protected <T extends ManagedEntity> T searchManagedEntity(final @NotNull String idName,
@@ -185,25 +240,44 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
     if (dc == null) {
       return (T)new InventoryNavigator(getRootFolder()).searchManagedEntity(instanceType.getSimpleName(), idName);
     } else {
-      return (T)new InventoryNavigator(dc).searchManagedEntity(instanceType.getSimpleName(), idName);
+      return (T)new InventoryNavigator(getSearchRoot(dc, instanceType)).searchManagedEntity(instanceType.getSimpleName(), idName);
     }
   }
 
   protected Map<String, VirtualMachine> searchVMsByNames(final @NotNull Collection<String> names, final @Nullable Datacenter dc) throws  VmwareCheckedCloudException {
 
+    ManagedEntity searchFolder = null;
     try {
-      ManagedEntity searchFolder = (dc == null) ? getRootFolder() : dc;
+      searchFolder = (dc == null) ? getRootFolder() : dc;
       Map<String, ManagedEntity> rawVmsMaps = new InventoryNavigator(searchFolder).searchManagedEntities("VirtualMachine", names);
       return rawVmsMaps.entrySet().stream().collect(Collectors.toMap(Map.Entry::getKey, e -> (VirtualMachine)e.getValue(), (k, v) -> k));
     } catch (RemoteException  re){
-      throw new VmwareCheckedCloudException(re);
+      throw wrapException(searchFolder, re);
     }
   }
 
   @NotNull
   protected <T extends ManagedEntity> Pair<T,Datacenter> findEntityByIdNameOld(String idName, Class<T> instanceType) throws VmwareCheckedCloudException  {
+    final boolean cachedDatacenters = myDatacenters != null;
+    Optional<Pair<T, Datacenter>> any = findInDatacenters(idName, instanceType, getDatacenters());
+    if (!any.isPresent() && cachedDatacenters) {
+      // the entity might belong to a datacenter created after the list was loaded
+      invalidateDatacenters();
+      any = findInDatacenters(idName, instanceType, getDatacenters());
+    }
+
+    if (!any.isPresent() ) {
+      throw new VmwareCheckedCloudException(String.format("Unable to find %s '%s'", instanceType.getSimpleName(), idName));
+    }
+    return any.get();
+  }
+
+  private <T extends ManagedEntity> Optional<Pair<T, Datacenter>> findInDatacenters(@NotNull final String idName,
+                                                                                   @NotNull final Class<T> instanceType,
+                                                                                   @NotNull final Collection<Datacenter> datacenters)
+    throws VmwareCheckedCloudException {
     final AtomicReference<VmwareCheckedCloudException> exceptionRef = new AtomicReference<>();
-    final Optional<Pair<T, Datacenter>> any = findAllEntitiesOld(Datacenter.class)
+    final Optional<Pair<T, Datacenter>> any = datacenters
       .stream()
       .map(
         dc -> {
@@ -221,59 +295,344 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
     if (exceptionRef.get() != null) {
       throw exceptionRef.get();
     }
+    return any;
+  }
 
-    if (!any.isPresent() ) {
-      throw new VmwareCheckedCloudException(String.format("Unable to find %s '%s'", instanceType.getSimpleName(), idName));
+  @NotNull
+  private Collection<Datacenter> getDatacenters() throws VmwareCheckedCloudException {
+    return getDatacenterInfos().stream()
+                               .map(info -> this.<Datacenter>createExactManagedEntity(info.getMOR()))
+                               .filter(Objects::nonNull)
+                               .collect(Collectors.toList());
+  }
+
+  @NotNull
+  private synchronized List<DatacenterInfo> getDatacenterInfos() throws VmwareCheckedCloudException {
+    final long ttl = TeamCityProperties.getLong(VmwareConstants.DATACENTERS_CACHE_TTL, DATACENTERS_CACHE_TTL);
+    if (myDatacenters == null || System.currentTimeMillis() - myDatacentersTimestamp > ttl) {
+      myDatacenters = Collections.unmodifiableList(
+        findAllEntitiesOld(Datacenter.class).stream().map(DatacenterInfo::new).collect(Collectors.toList()));
+      myDatacentersTimestamp = System.currentTimeMillis();
     }
-    return any.get();
+    return myDatacenters;
+  }
+
+  private void invalidateDatacenters(){
+    myDatacenters = null;
+  }
+
+  @Nullable
+  private DatacenterInfo findDatacenterInfo(@NotNull final Datacenter dc) throws VmwareCheckedCloudException {
+    final String datacenterId = dc.getMOR().getVal();
+    for (DatacenterInfo info : getDatacenterInfos()) {
+      if (datacenterId.equals(info.getId())) {
+        return info;
+      }
+    }
+    return null;
+  }
+
+  @NotNull
+  private String getDatacenterName(@NotNull final Datacenter dc){
+    try {
+      final DatacenterInfo info = findDatacenterInfo(dc);
+      return info == null ? dc.getName() : info.getName(dc);
+    } catch (VmwareCheckedCloudException e) {
+      return dc.getMOR().getVal();
+    }
+  }
+
+  /**
+   * VMs and VM folders can only be located below the datacenter VM folder, no need to traverse hosts, networks and datastores
+   */
+  @NotNull
+  private ManagedEntity getSearchRoot(@NotNull final Datacenter dc, @NotNull final Class<? extends ManagedEntity> instanceType){
+    if (instanceType != VirtualMachine.class && instanceType != Folder.class) {
+      return dc;
+    }
+    try {
+      final DatacenterInfo info = findDatacenterInfo(dc);
+      if (info != null) {
+        return info.getVmFolder(dc);
+      }
+    } catch (Exception ex) {
+      LOG.debug("Unable to get VM folder of datacenter " + dc.getMOR().getVal() + ": " + ex.toString());
+    }
+    return dc;
   }
 
   protected Collection<VmwareInstance> findAllVirtualMachines() throws VmwareCheckedCloudException {
+    if (myInventoryWatcher != null){
+      return logInstances(findAllVirtualMachinesIncrementally());
+    }
+    final int pageSize = getInventoryPageSize();
     final AtomicReference<VmwareCheckedCloudException> exceptionRef = new AtomicReference<>();
     final Collection<VmwareInstance> result = findWithDatacenter(dc -> {
       final String datacenterId = dc.getMOR().getVal();
       try {
-        final ObjectContent[] ocs = getObjectContents(dc, new String[][]{{
-          "VirtualMachine", "name", "config.extraConfig", "config.template" , "config.changeVersion"
-          , "runtime.powerState", "runtime.bootTime",
-          "guest.ipAddress", "parent"
-        },});
-        if (ocs == null){
-          return Stream.empty();
+        if (pageSize > 0) {
+          return retrieveVmwareInstancesPaged(dc, VmwareUtils.createFilterSpec(dc.getMOR(), new String[][]{getVmTypeInfo()}), datacenterId, pageSize).stream();
         }
-        return Arrays.stream(ocs)
-                     .map(oc->{
-            final Map<String, Object> mappedProperties = Arrays.stream(oc.getPropSet()).collect(Collectors.toMap(
-              DynamicProperty::getName, DynamicProperty::getVal
-            ));
-
-          final String vmName = String.valueOf(mappedProperties.get("name"));
-          try {
-            return new VmwareInstance(
-              vmName,
-              oc.getObj().getVal(),
-              ((ArrayOfOptionValue)mappedProperties.get("config.extraConfig")).getOptionValue(),
-              (VirtualMachinePowerState)mappedProperties.get("runtime.powerState"),
-              (Boolean)mappedProperties.get("config.template"),
-              String.valueOf(mappedProperties.get("config.changeVersion")),
-              (Calendar)mappedProperties.get("runtime.bootTime"),
-              (String)mappedProperties.get("guest.ipAddress"),
-              (ManagedObjectReference)mappedProperties.get("parent"),
-              datacenterId
-            );
-          } catch (Exception ex) {
-            LOG.debug("Unable to process VM with name '" + vmName + "'. Not all properties are available");
-            return null;
-          }}).filter(Objects::nonNull);
+        return toVmwareInstances(getObjectContents(dc, new String[][]{getVmTypeInfo()}), datacenterId);
       } catch (RemoteException e) {
         LOG.warnAndDebugDetails("An error occurred while searching for all folders", e);
-        exceptionRef.set(new VmwareCheckedCloudException(e));
+        exceptionRef.set(wrapException(dc, e));
+        return Stream.empty();
+      } catch (VmwareCheckedCloudException e) {
+        exceptionRef.set(e);
         return Stream.empty();
       }
     });
     if (exceptionRef.get() != null){
       throw exceptionRef.get();
     }
+    return logInstances(result);
+  }
+
+  /**
+   * Retrieves only the VMs located in the folders and resource pools used by the given images, plus the source VMs.
+   * The rest of the datacenter tree is not traversed, unless some image doesn't specify its folder or resource pool
+   */
+  private Map<String, VmwareInstance> findScopedVirtualMachinesAsMap(@NotNull final Collection<VmwareCloudImage> images) throws VmwareCheckedCloudException {
+    final Set<Pair<Class<? extends ManagedEntity>, String>> containers = new HashSet<>();
+    final Set<String> sourceVmNames = new HashSet<>();
+    boolean wholeDatacenters = false;
+    for (VmwareCloudImage image : images) {
+      final VmwareCloudImageDetails imageDetails = image.getImageDetails();
+      sourceVmNames.add(imageDetails.getSourceVmName());
+      if (imageDetails.getBehaviour().isUseOriginal())
+        continue;
+      if (StringUtil.isEmpty(imageDetails.getFolderId())
+          || StringUtil.isEmpty(imageDetails.getResourcePoolId())
+          || VmwareConstants.DEFAULT_RESOURCE_POOL.equals(imageDetails.getResourcePoolId())) {
+        // the clones might be placed anywhere in the datacenter
+        wholeDatacenters = true;
+        continue;
+      }
+      containers.add(Pair.create(Folder.class, imageDetails.getFolderId()));
+      containers.add(Pair.create(ResourcePool.class, imageDetails.getResourcePoolId()));
+    }
+
+    final boolean scanWholeDatacenters = wholeDatacenters;
+    final int pageSize = getInventoryPageSize();
+    final AtomicReference<VmwareCheckedCloudException> exceptionRef = new AtomicReference<>();
+    final Collection<VmwareInstance> result = findWithDatacenter(dc -> {
+      final String datacenterId = dc.getMOR().getVal();
+      try {
+        final PropertyFilterSpec filterSpec;
+        if (scanWholeDatacenters) {
+          filterSpec = VmwareUtils.createFilterSpec(dc.getMOR(), new String[][]{getVmTypeInfo()});
+        } else {
+          final Collection<ManagedObjectReference> roots = resolveScopeRoots(dc, containers, sourceVmNames);
+          if (roots.isEmpty()){
+            return Stream.empty();
+          }
+          filterSpec = VmwareUtils.createScopedFilterSpec(roots, new String[][]{getVmTypeInfo()});
+        }
+        if (pageSize > 0) {
+          return retrieveVmwareInstancesPaged(dc, filterSpec, datacenterId, pageSize).stream();
+        }
+        return toVmwareInstances(getPropertyCollector(dc).retrieveProperties(new PropertyFilterSpec[]{filterSpec}), datacenterId);
+      } catch (RemoteException e) {
+        LOG.warnAndDebugDetails("An error occurred while searching for the image instances", e);
+        // some of the cached folders, pools or VMs might have been removed
+        myScopeRoots.invalidateAll();
+        exceptionRef.set(wrapException(dc, e));
+        return Stream.empty();
+      } catch (VmwareCheckedCloudException e) {
+        exceptionRef.set(e);
+        return Stream.empty();
+      }
+    });
+    if (exceptionRef.get() != null){
+      throw exceptionRef.get();
+    }
+    final Map<String, VmwareInstance> instances = logInstances(result)
+      .stream()
+      .collect(Collectors.toMap(VmwareInstance::getName, Function.identity(), (k, v) -> k));
+    // lookups of VMs outside of the scope will miss the index and fall back to the full scan
+    updateInstancesIndex(instances);
+    return instances;
+  }
+
+  @NotNull
+  private Collection<ManagedObjectReference> resolveScopeRoots(@NotNull final Datacenter dc,
+                                                               @NotNull final Collection<Pair<Class<? extends ManagedEntity>, String>> containers,
+                                                               @NotNull final Collection<String> sourceVmNames) throws VmwareCheckedCloudException {
+    final String datacenterId = dc.getMOR().getVal();
+    // the same folder or pool might be referenced by several images and found by both id and name
+    final Map<String, ManagedObjectReference> roots = new LinkedHashMap<>();
+    for (Pair<Class<? extends ManagedEntity>, String> container : containers) {
+      final String key = datacenterId + "|" + container.getFirst().getSimpleName() + "|" + container.getSecond();
+      ManagedObjectReference mor = myScopeRoots.getIfPresent(key);
+      if (mor == null) {
+        final ManagedEntity entity = findEntityByIdNameNullableOld(container.getSecond(), container.getFirst(), dc);
+        if (entity == null)
+          continue;
+        mor = entity.getMOR();
+        myScopeRoots.put(key, mor);
+      }
+      roots.put(mor.getType() + "|" + mor.getVal(), mor);
+    }
+
+    final List<String> unresolvedVmNames = new ArrayList<>();
+    for (String vmName : sourceVmNames) {
+      final ManagedObjectReference mor = myScopeRoots.getIfPresent(datacenterId + "|" + VM_TYPE + "|" + vmName);
+      if (mor == null) {
+        unresolvedVmNames.add(vmName);
+      } else {
+        roots.put(mor.getType() + "|" + mor.getVal(), mor);
+      }
+    }
+    if (!unresolvedVmNames.isEmpty()) {
+      final Map<String, VirtualMachine> vms = searchVMsByNames(unresolvedVmNames, dc);
+      for (String vmName : unresolvedVmNames) {
+        final VirtualMachine vm = vms.get(vmName);
+        if (vm == null)
+          continue;
+        myScopeRoots.put(datacenterId + "|" + VM_TYPE + "|" + vmName, vm.getMOR());
+        roots.put(vm.getMOR().getType() + "|" + vm.getMOR().getVal(), vm.getMOR());
+      }
+    }
+    return roots.values();
+  }
+
+  private static String[] getVmTypeInfo(){
+    return TeamCityProperties.getBoolean(VmwareConstants.KEYED_EXTRA_CONFIG) ? VM_KEYED_TYPEINFO : VM_TYPEINFO;
+  }
+
+  private static int getInventoryPageSize(){
+    return TeamCityProperties.getInteger(VmwareConstants.INVENTORY_PAGE_SIZE, 0);
+  }
+
+  /**
+   * Retrieves VMs page by page. Each page is converted right away, so only a single page of raw properties is kept in memory
+   */
+  @NotNull
+  private List<VmwareInstance> retrieveVmwareInstancesPaged(@NotNull final Datacenter dc,
+                                                            @NotNull final PropertyFilterSpec filterSpec,
+                                                            @NotNull final String datacenterId,
+                                                            final int pageSize) throws RemoteException, VmwareCheckedCloudException {
+    final PropertyCollector collector = getPropertyCollector(dc);
+    final RetrieveOptions options = new RetrieveOptions();
+    options.setMaxObjects(pageSize);
+
+    final List<VmwareInstance> result = new ArrayList<>();
+    String token = null;
+    try {
+      RetrieveResult page = collector.retrievePropertiesEx(new PropertyFilterSpec[]{filterSpec}, options);
+      while (page != null) {
+        token = page.getToken();
+        toVmwareInstances(page.getObjects(), datacenterId).forEach(result::add);
+        if (token == null)
+          break;
+        page = collector.continueRetrievePropertiesEx(token);
+      }
+      token = null;
+    } finally {
+      if (token != null) {
+        // release the server-side result set of the failed retrieval
+        try {
+          collector.cancelRetrievePropertiesEx(token);
+        } catch (Exception ex) {
+          LOG.debug("Unable to cancel properties retrieval: " + ex.toString());
+        }
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private Stream<VmwareInstance> toVmwareInstances(@Nullable final ObjectContent[] ocs, @NotNull final String datacenterId){
+    if (ocs == null){
+      return Stream.empty();
+    }
+    return Arrays.stream(ocs)
+                 .map(oc-> createVmwareInstance(oc.getObj().getVal(), getPropertiesMap(oc), datacenterId))
+                 .filter(Objects::nonNull);
+  }
+
+  /**
+   * Unlike {@link Collectors#toMap}, tolerates null values (i.e. parent of the root folder) and a missing property set
+   */
+  @NotNull
+  private static Map<String, Object> getPropertiesMap(@NotNull final ObjectContent oc){
+    final DynamicProperty[] propSet = oc.getPropSet();
+    if (propSet == null) {
+      return Collections.emptyMap();
+    }
+    final Map<String, Object> result = new HashMap<>(propSet.length * 2);
+    for (DynamicProperty property : propSet) {
+      result.put(property.getName(), property.getVal());
+    }
+    return result;
+  }
+
+  private Collection<VmwareInstance> findAllVirtualMachinesIncrementally() throws VmwareCheckedCloudException {
+    // the watcher is pinned to a single session, otherwise it would be recreated on every call
+    final ServiceInstance serviceInstance = mySessions.getPrimary().getServiceInstance();
+    try {
+      final Collection<Datacenter> datacenters = getDatacenters();
+      if (!myInventoryWatcher.isAttachedTo(serviceInstance)) {
+        myInventoryWatcher.attach(serviceInstance, datacenters);
+      } else {
+        // the datacenters created after the watcher was attached
+        myInventoryWatcher.updateDatacenters(datacenters);
+      }
+      return myInventoryWatcher.sync()
+                               .stream()
+                               .map(state -> createVmwareInstance(state.getId(), state.getProperties(), state.getDatacenterId()))
+                               .filter(Objects::nonNull)
+                               .collect(Collectors.toList());
+    } catch (RemoteException e) {
+      LOG.warnAndDebugDetails("An error occurred while updating the inventory", e);
+      myInventoryWatcher.detach();
+      throw wrapException(serviceInstance, e);
+    }
+  }
+
+  @Nullable
+  private VmwareInstance createVmwareInstance(@NotNull final String id,
+                                              @NotNull final Map<String, Object> properties,
+                                              @NotNull final String datacenterId){
+    final String vmName = String.valueOf(properties.get("name"));
+    try {
+      return new VmwareInstance(
+        vmName,
+        id,
+        getExtraConfig(properties),
+        (VirtualMachinePowerState)properties.get("runtime.powerState"),
+        (Boolean)properties.get("config.template"),
+        String.valueOf(properties.get("config.changeVersion")),
+        (Calendar)properties.get("runtime.bootTime"),
+        (String)properties.get("guest.ipAddress"),
+        (ManagedObjectReference)properties.get("parent"),
+        datacenterId
+      );
+    } catch (Exception ex) {
+      LOG.debug("Unable to process VM with name '" + vmName + "'. Not all properties are available");
+      return null;
+    }
+  }
+
+  private static OptionValue[] getExtraConfig(@NotNull final Map<String, Object> properties){
+    final Object extraConfig = properties.get(EXTRA_CONFIG);
+    if (extraConfig != null) {
+      final OptionValue[] optionValues = ((ArrayOfOptionValue)extraConfig).getOptionValue();
+      return optionValues == null ? new OptionValue[0] : optionValues;
+    }
+    if (!TeamCityProperties.getBoolean(VmwareConstants.KEYED_EXTRA_CONFIG)) {
+      return new OptionValue[0];
+    }
+    // keyed entries are reported as separate properties, the missing ones are just absent
+    return properties.entrySet()
+                     .stream()
+                     .filter(e -> e.getKey().startsWith(EXTRA_CONFIG + "[") && e.getValue() instanceof OptionValue)
+                     .map(e -> (OptionValue)e.getValue())
+                     .toArray(OptionValue[]::new);
+  }
+
+  private Collection<VmwareInstance> logInstances(@NotNull final Collection<VmwareInstance> result){
     LOG.debug(
       String.format("[%s]. All instances: [%s]"
         , myProfileId, String.join(",", result
@@ -286,13 +645,19 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
   }
 
   protected Map<String, VmwareInstance> findAllVirtualMachinesAsMap() throws VmwareCheckedCloudException{
-    return findAllVirtualMachines()
+    final Map<String, VmwareInstance> result = findAllVirtualMachines()
       .stream()
       .collect(Collectors.toMap(VmwareInstance::getName, Function.identity(), (k, v) -> k));
+    updateInstancesIndex(result);
+    return result;
   }
 
   @NotNull
   protected VmwareInstance findVirtualMachineOrThrowException(String vmName) throws VmwareCheckedCloudException {
+    final VmwareInstance indexedInstance = getIndexedInstance(vmName);
+    if (indexedInstance != null) {
+      return indexedInstance;
+    }
     final VmwareInstance vmwareInstance = findAllVirtualMachinesAsMap().get(vmName);
     if (vmwareInstance == null) {
       throw new VmwareCheckedCloudException(String.format("Unable to find VirtualMachine by name '%s'", vmName));
@@ -300,6 +665,27 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
     return vmwareInstance;
   }
 
+  private void updateInstancesIndex(@NotNull final Map<String, VmwareInstance> instances){
+    myInstancesIndex = new ConcurrentHashMap<>(instances);
+    myInstancesIndexTimestamp = System.currentTimeMillis();
+  }
+
+  /**
+   * @return the VM found by the latest inventory scan, if the scan is not older than the configured TTL
+   */
+  @Nullable
+  private VmwareInstance getIndexedInstance(@NotNull final String vmName){
+    final long ttl = TeamCityProperties.getInteger(VmwareConstants.INSTANCES_INDEX_TTL, 0) * 1000L;
+    if (ttl <= 0 || System.currentTimeMillis() - myInstancesIndexTimestamp > ttl) {
+      return null;
+    }
+    return myInstancesIndex.get(vmName);
+  }
+
+  private void invalidateIndexedInstance(@NotNull final String vmName){
+    myInstancesIndex.remove(vmName);
+  }
+
   protected Collection<FolderBean> findAllFolders() throws VmwareCheckedCloudException {
     final AtomicReference<VmwareCheckedCloudException> exceptionRef = new AtomicReference<>();
     final Collection<FolderBean> result = findWithDatacenter(dc -> {
@@ -311,11 +697,10 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
           return Stream.empty();
         }
         final String datacenterId = dc.getMOR().getVal();
+        final VmwareInventoryPaths paths = getInventoryPaths(dc);
         return Arrays.stream(ocs).map(oc -> {
           try {
-            final Map<String, Object> mappedProperties = Arrays.stream(oc.getPropSet()).collect(Collectors.toMap(
-              DynamicProperty::getName, DynamicProperty::getVal
-            ));
+            final Map<String, Object> mappedProperties = getPropertiesMap(oc);
 
             final String simpleName = String.valueOf(mappedProperties.get("name"));
             final ManagedObjectReference parent = (ManagedObjectReference)mappedProperties.get("parent");
@@ -335,7 +720,7 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
               return null;
             }
 
-            final String fullFolderPath = getFullPath(simpleName, oc.obj, parent, dc);
+            final String fullFolderPath = getFullPath(simpleName, oc.obj, parent, paths);
             LOG.debug("Calculated path: " + fullFolderPath);
 
             return new FolderBean(oc.obj,
@@ -352,7 +737,7 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
         });
       } catch (RemoteException e) {
         LOG.warnAndDebugDetails("An error occurred while searching for all folders", e);
-        exceptionRef.set(new VmwareCheckedCloudException(e));
+        exceptionRef.set(wrapException(dc, e));
         return Stream.empty();
       }
     });
@@ -369,17 +754,14 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
         if (ocs == null){
           return Stream.empty();
         }
+        final VmwareInventoryPaths paths = getInventoryPaths(dc);
         return Arrays.stream(ocs).map(oc -> {
-          final Map<String, Object> mappedProperties = Arrays.stream(oc.getPropSet()).collect(Collectors.toMap(
-            DynamicProperty::getName, DynamicProperty::getVal
-          ));
+          final Map<String, Object> mappedProperties = getPropertiesMap(oc);
           final String simpleName = String.valueOf(mappedProperties.get("name"));
           final ManagedObjectReference parent = (ManagedObjectReference)mappedProperties.get("parent");
           LOG.debug("Found respool with name '" + simpleName + "'. Parent: " + (parent == null ? "null" : parent.toString()));
 
-          final ResourcePool pool =  (ResourcePool)createExactManagedEntity(oc.getObj());
-
-          final String path = getFullPath(simpleName, oc.obj, parent, dc);
+          final String path = getFullPath(simpleName, oc.obj, parent, paths);
           LOG.debug("Calculated path: " + path);
 
           return new ResourcePoolBean(oc.obj,
@@ -391,7 +773,7 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
         });
       } catch (RemoteException e) {
         LOG.warnAndDebugDetails("An error occurred while searching for all resource pools", e);
-        exceptionRef.set(new VmwareCheckedCloudException(e));
+        exceptionRef.set(wrapException(dc, e));
         return Stream.empty();
       }
     });
@@ -408,16 +790,61 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
 
   private <T extends VmwareManagedEntity> Collection<T> findWithDatacenter(
     Function<Datacenter, Stream<T>> mapper) throws VmwareCheckedCloudException {
-    return findAllEntitiesOld(Datacenter.class).stream().flatMap(mapper).filter(Objects::nonNull).collect(Collectors.toList());
+    final Collection<Datacenter> datacenters = getDatacenters();
+    final int parallelism = TeamCityProperties.getInteger(VmwareConstants.DATACENTER_PARALLELISM, 1);
+    if (parallelism <= 1 || datacenters.size() <= 1) {
+      return datacenters.stream().flatMap(mapper).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    // streams are collected inside the workers, so that the round trips to different datacenters overlap
+    final ExecutorService executor = getDatacenterExecutor(parallelism);
+    final List<Future<List<T>>> futures = new ArrayList<>();
+    for (Datacenter dc : datacenters) {
+      final FutureTask<List<T>> task = new FutureTask<>(() -> mapper.apply(dc).filter(Objects::nonNull).collect(Collectors.toList()));
+      try {
+        executor.execute(task);
+      } catch (RejectedExecutionException e) {
+        // the executor has been replaced after the parallelism change or disposed meanwhile
+        task.run();
+      }
+      futures.add(task);
+    }
+    final List<T> result = new ArrayList<>();
+    try {
+      for (Future<List<T>> future : futures) {
+        result.addAll(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VmwareCheckedCloudException("Interrupted while waiting for datacenters data", e);
+    } catch (ExecutionException e) {
+      throw new VmwareCheckedCloudException(e.getCause());
+    } finally {
+      futures.forEach(f -> f.cancel(true));
+    }
+    return result;
+  }
+
+  @NotNull
+  private synchronized ExecutorService getDatacenterExecutor(final int parallelism){
+    if (myDatacenterExecutor == null || myDatacenterExecutorSize != parallelism) {
+      if (myDatacenterExecutor != null) {
+        myDatacenterExecutor.shutdown();
+      }
+      myDatacenterExecutor = ExecutorsFactory.newFixedDaemonExecutor("VMWare datacenters fetcher", parallelism);
+      myDatacenterExecutorSize = parallelism;
+    }
+    return myDatacenterExecutor;
   }
 
   protected <T extends ManagedEntity> Collection<T> findAllEntitiesOld(Class<T> instanceType) throws VmwareCheckedCloudException  {
     final ManagedEntity[] managedEntities;
+    final Folder rootFolder = getRootFolder();
     try {
-      managedEntities = new InventoryNavigator(getRootFolder())
+      managedEntities = new InventoryNavigator(rootFolder)
         .searchManagedEntities(new String[][]{{instanceType.getSimpleName(), "name"},}, true);
     } catch (RemoteException e) {
-      throw new VmwareCheckedCloudException(e);
+      throw wrapException(rootFolder, e);
     }
     List<T> retval = new ArrayList<T>();
     for (ManagedEntity managedEntity : managedEntities) {
@@ -428,11 +855,12 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
 
   protected <T extends ManagedEntity> Map<String, T> findAllEntitiesAsMapOld(Class<T> instanceType) throws VmwareCheckedCloudException  {
     final ManagedEntity[] managedEntities;
+    final Folder rootFolder = getRootFolder();
     try {
-      managedEntities = new InventoryNavigator(getRootFolder())
+      managedEntities = new InventoryNavigator(rootFolder)
         .searchManagedEntities(new String[][]{{instanceType.getSimpleName(), "name"},}, true);
     } catch (RemoteException e) {
-      throw new VmwareCheckedCloudException(e);
+      throw wrapException(rootFolder, e);
     }
     Map<String, T> retval = new HashMap<String, T>();
     for (ManagedEntity managedEntity : managedEntities) {
@@ -466,7 +894,9 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
     Map<VmwareCloudImage, Map<String, R>> result = new HashMap<>();
     List<VmwareCloudImage> unprocessed = new ArrayList<>();
 
-    final Map<String, VmwareInstance> allVmsAsMap = findAllVirtualMachinesAsMap();
+    final Map<String, VmwareInstance> allVmsAsMap = myInventoryWatcher == null && TeamCityProperties.getBoolean(VmwareConstants.SCOPED_INVENTORY)
+                                                    ? findScopedVirtualMachinesAsMap(images)
+                                                    : findAllVirtualMachinesAsMap();
 
     for (VmwareCloudImage image: images) {
       final VmwareCloudImageDetails imageDetails = image.getImageDetails();
@@ -518,7 +948,7 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
   public Map<String, String> getCustomizationSpecs() {
     final Map<String,String> retval = new HashMap<>();
     try {
-      final CustomizationSpecManager specManager = myServiceInstance.getCustomizationSpecManager();
+      final CustomizationSpecManager specManager = getServiceInstance().getCustomizationSpecManager();
       if (specManager == null)
         return retval;
       final CustomizationSpecInfo[] specs = specManager.getInfo();
@@ -535,7 +965,7 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
 
   @Override
   public CustomizationSpec getCustomizationSpec(final String name) throws VmwareCheckedCloudException {
-    final CustomizationSpecManager specManager = myServiceInstance.getCustomizationSpecManager();
+    final CustomizationSpecManager specManager = getServiceInstance().getCustomizationSpecManager();
     if (specManager == null){
       throw new VmwareCheckedCloudException("Customization Spec in not available: '" + name + "'");
     }
@@ -581,13 +1011,13 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
   private String getFullPath(@NotNull final String entityName,
                              @NotNull final ManagedObjectReference mor,
                              @Nullable final ManagedObjectReference firstParent,
-                             @Nullable final Datacenter dc){
+                             @NotNull final VmwareInventoryPaths paths){
     final String uniqueName = String.format("%s (%s)", entityName, mor.getVal());
     if (firstParent == null) {
       return uniqueName;
     }
     try {
-      final String morPath = getFullMORPath(createExactManagedEntity(firstParent), dc);
+      final String morPath = paths.getPath(firstParent);
       if (StringUtil.isEmpty(morPath)) {
         return uniqueName;
       } else if (("Resources".equals(entityName) || "vm".equals(entityName)) && !mor.getType().equals(firstParent.getType())) {
@@ -632,7 +1062,24 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
     }
   }
 
-  private String getFullMORPath(@NotNull final ManagedEntity entity, @Nullable final Datacenter dc) {
+  /**
+   * Loads names and parents of all the datacenter folders, pools and compute resources at once.
+   * Entities missing in the result are resolved one by one
+   */
+  @NotNull
+  private VmwareInventoryPaths getInventoryPaths(@NotNull final Datacenter dc) throws RemoteException {
+    final String datacenterId = dc.getMOR().getVal();
+    VmwareInventoryPaths paths = myInventoryPaths.getIfPresent(datacenterId);
+    if (paths == null) {
+      paths = new VmwareInventoryPaths(getObjectContents(dc, VmwareInventoryPaths.TYPEINFO),
+                                       mor -> getFullMORPath(createExactManagedEntity(mor), dc));
+      myInventoryPaths.put(datacenterId, paths);
+    }
+    return paths;
+  }
+
+  @Used("Tests")
+  String getFullMORPath(@NotNull final ManagedEntity entity, @Nullable final Datacenter dc) {
     final ManagedObjectReference mor = entity.getMOR();
     final Pair<String, String> morPair = Pair.create(mor.getType(), mor.getVal());
     final String existingPath = MANAGED_ENTITIES_NAMES_CACHE.getIfPresent(morPair);
@@ -640,9 +1087,7 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
       return existingPath;
     final ManagedEntity parent = entity.getParent();
     final String entityName = entity.getName();
-    boolean skipName =
-      (mor.getType().equals(FOLDER_TYPE) && (entityName.equals(SPEC_FOLDER) || !FOLDER_PATTERN.matcher(morPair.getSecond()).matches() )) ||
-      (mor.getType().equals(RESPOOL_TYPE) && entityName.equals(SPEC_RESPOOL));
+    boolean skipName = VmwareUtils.isSkippedInPath(mor, entityName);
 
     if (parent == null){
       final String name = skipName ? "" : entityName;
@@ -660,11 +1105,7 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
 
   @NotNull
   private Map<String, VirtualMachineSnapshotTree> getSnapshotList(final VirtualMachine vm) {
-    if (vm.getSnapshot() == null) {
-      return Collections.emptyMap();
-    }
-    final VirtualMachineSnapshotTree[] rootSnapshotList = vm.getSnapshot().getRootSnapshotList();
-    return snapshotNames(rootSnapshotList);
+    return mySnapshotIndex.getSnapshots(vm.getMOR().getVal(), vm.getSnapshot());
   }
 
   public Map<String, VirtualMachineSnapshotTree> getSnapshotList(final String vmName) throws VmwareCheckedCloudException {
@@ -676,8 +1117,7 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
     if (VmwareConstants.CURRENT_STATE.equals(snapshotNameMask)){
       return VmwareConstants.CURRENT_STATE;
     }
-    final Map<String, VirtualMachineSnapshotTree> snapshotList = getSnapshotList(vmName);
-    return getLatestSnapshot(snapshotNameMask, snapshotList);
+    return getLatestSnapshot(findEntityByIdNameOld(vmName, VirtualMachine.class).getFirst(), snapshotNameMask);
   }
 
   private boolean containsDuplicates(Collection<? extends VmwareManagedEntity> entities){
@@ -691,37 +1131,21 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
   }
 
 
-  private String getLatestSnapshot(final String snapshotNameMask, final Map<String, VirtualMachineSnapshotTree> snapshotList) {
-    if (snapshotNameMask == null)
-      return null;
-    if (!snapshotNameMask.contains("*") && !snapshotNameMask.contains("?")) {
-      return snapshotList.containsKey(snapshotNameMask) ? snapshotNameMask : null;
-    }
-    Date latestTime = new Date(0);
-    String latestSnapshotName = null;
-    for (Map.Entry<String, VirtualMachineSnapshotTree> entry : snapshotList.entrySet()) {
-      final String snapshotNameMaskRegex = StringUtil.convertWildcardToRegexp(snapshotNameMask);
-      final Pattern pattern = Pattern.compile(snapshotNameMaskRegex);
-      if (pattern.matcher(entry.getKey()).matches()) {
-        final Date snapshotTime = entry.getValue().getCreateTime().getTime();
-        if (latestTime.before(snapshotTime)) {
-          latestTime = snapshotTime;
-          latestSnapshotName = entry.getKey();
-        }
-      }
-    }
-    return latestSnapshotName;
+  @Nullable
+  private String getLatestSnapshot(@NotNull final VirtualMachine vm, @Nullable final String snapshotNameMask) {
+    return mySnapshotIndex.getLatestSnapshot(vm.getMOR().getVal(), vm.getSnapshot(), snapshotNameMask);
   }
 
   @Nullable
   public Task startInstance(@NotNull final VmwareCloudInstance instance, @NotNull final String agentName, @NotNull final CloudInstanceUserData userData)
     throws VmwareCheckedCloudException, InterruptedException {
-    final VirtualMachine vm = findEntityByIdNameOld(instance.getInstanceId(), VirtualMachine.class).getFirst();
+    invalidateIndexedInstance(instance.getInstanceId());
+    final VirtualMachine vm = findInstanceVm(instance);
     if (vm != null) {
       try {
         return vm.powerOnVM_Task(null);
       } catch (RemoteException e) {
-        throw new VmwareCheckedCloudException(e);
+        throw wrapException(vm, e);
       }
     } else {
       instance.updateErrors(new TypedCloudErrorInfo(String.format("Instance %s doesn't exist", instance.getInstanceId())));
@@ -731,28 +1155,87 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
 
   public Task reconfigureInstance(@NotNull final VmwareCloudInstance instance, @NotNull final String agentName, @NotNull final CloudInstanceUserData userData)
     throws VmwareCheckedCloudException {
-    final VirtualMachine vm = findEntityByIdNameOld(instance.getInstanceId(), VirtualMachine.class).getFirst();
+    invalidateIndexedInstance(instance.getInstanceId());
+    final VirtualMachine vm = findInstanceVm(instance);
     final VirtualMachineConfigSpec spec = new VirtualMachineConfigSpec();
-    spec.setExtraConfig(new OptionValue[]{
+    final List<OptionValue> extraConfig = new ArrayList<>(Arrays.asList(createAgentOptionValues(instance, agentName, userData)));
+    // the instance is no longer a warm one, empty value removes the key
+    extraConfig.add(createOptionValue(TEAMCITY_VMWARE_WARM_CLONE, ""));
+    spec.setExtraConfig(extraConfig.toArray(new OptionValue[extraConfig.size()]));
+    try {
+      return vm.reconfigVM_Task(spec);
+    } catch (RemoteException e) {
+      throw wrapException(vm, e);
+    }
+  }
+
+  @NotNull
+  private OptionValue[] createAgentOptionValues(@NotNull final VmwareCloudInstance instance,
+                                                @NotNull final String agentName,
+                                                @NotNull final CloudInstanceUserData userData){
+    return new OptionValue[]{
       createOptionValue(AGENT_NAME, agentName),
       createOptionValue(INSTANCE_NAME, instance.getInstanceId()),
       createOptionValue(AUTH_TOKEN, userData.getAuthToken()),
       createOptionValue(SERVER_URL, userData.getServerAddress()),
       createOptionValue(IMAGE_NAME, instance.getImageId()),
       createOptionValue(USER_DATA, userData.serialize())
-    });
-    try {
-      return vm.reconfigVM_Task(spec);
-    } catch (RemoteException e) {
-      throw new VmwareCheckedCloudException(e);
-    }
+    };
   }
 
   @Nullable
   @Override
   public Task cloneAndStartVm(@NotNull final VmwareCloudInstance instance) throws VmwareCheckedCloudException {
+    return cloneVm(instance, null, false);
+  }
+
+  public Task cloneAndStartVm(@NotNull final VmwareCloudInstance instance, @NotNull final CloudInstanceUserData userData) throws VmwareCheckedCloudException {
+    return cloneVm(instance, userData, false);
+  }
+
+  public Task cloneWarmVm(@NotNull final VmwareCloudInstance instance) throws VmwareCheckedCloudException {
+    return cloneVm(instance, null, true);
+  }
+
+  @NotNull
+  public VmwareCloneScheduler getCloneScheduler() {
+    return VmwareCloneScheduler.getInstance(myInstanceURL.toString());
+  }
+
+  @NotNull
+  public Collection<String> getCloneResources(@NotNull final String sourceVmName) throws VmwareCheckedCloudException {
+    final VirtualMachine vm = findEntityByIdNameOld(sourceVmName, VirtualMachine.class).getFirst();
+    final List<String> resources = new ArrayList<>();
+    try {
+      // the clones are created on the host and the datastores of the source VM, unless DRS decides otherwise
+      final VirtualMachineRuntimeInfo runtime = vm.getRuntime();
+      if (runtime != null && runtime.getHost() != null) {
+        resources.add(VmwareCloneScheduler.hostResource(runtime.getHost().getVal()));
+      }
+      final Datastore[] datastores = vm.getDatastores();
+      if (datastores != null) {
+        for (Datastore datastore : datastores) {
+          resources.add(VmwareCloneScheduler.datastoreResource(datastore.getMOR().getVal()));
+        }
+      }
+    } catch (RemoteException e) {
+      throw wrapException(vm, e);
+    } catch (Exception e) {
+      LOG.debug("Unable to get host and datastores of " + sourceVmName + ": " + e.toString());
+    }
+    return resources;
+  }
+
+  /**
+   * @param userData if not null, the agent configuration is added to the clone spec
+   * @param warm the clone is left powered off for the warm pool
+   */
+  private Task cloneVm(@NotNull final VmwareCloudInstance instance,
+                       @Nullable final CloudInstanceUserData userData,
+                       final boolean warm) throws VmwareCheckedCloudException {
     final VmwareCloudImageDetails imageDetails = instance.getImage().getImageDetails();
     LOG.info(String.format("Attempting to clone VM %s into %s", imageDetails.getSourceVmName(), instance.getName()));
+    invalidateIndexedInstance(instance.getName());
 
     final Pair<VirtualMachine, Datacenter> pair = findEntityByIdNameOld(imageDetails.getSourceVmName(), VirtualMachine.class);
     final VirtualMachine vm = pair.getFirst();
@@ -762,7 +1245,7 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
     final VirtualMachineCloneSpec cloneSpec = new VirtualMachineCloneSpec();
     final VirtualMachineRelocateSpec location = new VirtualMachineRelocateSpec();
 
-    cloneSpec.setPowerOn(true);
+    cloneSpec.setPowerOn(!warm);
     cloneSpec.setLocation(location);
     cloneSpec.setConfig(config);
     final boolean disableOsCustomization = TeamCityProperties.getBoolean(VmwareConstants.DISABLE_OS_CUSTOMIZATION);
@@ -773,7 +1256,7 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
       } else {
         LOG.warn(String.format("Unable to find resource pool %s at datacenter %s. Will clone at the image resource pool instead"
           , imageDetails.getResourcePoolId()
-          , datacenter == null? "<not provided>":  datacenter.getName()));
+          , datacenter == null? "<not provided>":  getDatacenterName(datacenter)));
       }
     }
     final Map<String, VirtualMachineSnapshotTree> snapshotList = getSnapshotList(vm);
@@ -798,7 +1281,7 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
     }
 
     final VirtualMachineConfigInfo vmConfig = vm.getConfig();
-    config.setExtraConfig(new OptionValue[]{
+    final List<OptionValue> extraConfig = new ArrayList<>(Arrays.asList(
       createOptionValue(TEAMCITY_VMWARE_CLONED_INSTANCE, "true"),
       createOptionValue(TEAMCITY_VMWARE_IMAGE_SOURCE_VM_NAME, imageDetails.getSourceVmName()),
       createOptionValue(TEAMCITY_VMWARE_IMAGE_SOURCE_ID, imageDetails.getSourceId()),
@@ -807,7 +1290,15 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
       createOptionValue(TEAMCITY_VMWARE_IMAGE_CHANGE_VERSION, vmConfig.getChangeVersion()),
       createOptionValue(TEAMCITY_VMWARE_PROFILE_ID, StringUtil.emptyIfNull(myProfileId)),
       createOptionValue(TEAMCITY_VMWARE_SERVER_UUID, StringUtil.emptyIfNull(myServerUUID))
-    });
+    ));
+    if (warm) {
+      extraConfig.add(createOptionValue(TEAMCITY_VMWARE_WARM_CLONE, "true"));
+    }
+    if (userData != null) {
+      // the guest finds its agent configuration on the first boot
+      extraConfig.addAll(Arrays.asList(createAgentOptionValues(instance, instance.getName(), userData)));
+    }
+    config.setExtraConfig(extraConfig.toArray(new OptionValue[extraConfig.size()]));
 
     final GuestInfo guest = vm.getGuest();
     String guestFamily = guest != null ? guest.getGuestFamily() : null;
@@ -849,15 +1340,53 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
       if (folder != null) {
         return vm.cloneVM_Task(folder, instance.getName(), cloneSpec);
       } else {
-        String dcName = datacenter == null ? "root" : datacenter.getName();
+        String dcName = datacenter == null ? "root" : getDatacenterName(datacenter);
         throw new VmwareCheckedCloudException(
           String.format("Unable to find folder %s in datacenter %s", imageDetails.getFolderId(), dcName)
         );
       }
     } catch (RemoteException e) {
       instance.setStatus(InstanceStatus.ERROR);
-      throw new VmwareCheckedCloudException(e);
+      throw wrapException(vm, e);
+    }
+  }
+
+  @NotNull
+  private VirtualMachine findInstanceVm(@NotNull final VmwareCloudInstance instance) throws VmwareCheckedCloudException {
+    final VirtualMachine vm = findInstanceVmNullable(instance);
+    if (vm == null) {
+      throw new VmwareCheckedCloudException(String.format("Unable to find %s '%s'", VM_TYPE, instance.getInstanceId()));
     }
+    return vm;
+  }
+
+  /**
+   * Resolves the instance VM by its MOR with a single call, if the VM was already discovered.
+   * Falls back to the search by name otherwise
+   */
+  @Nullable
+  private VirtualMachine findInstanceVmNullable(@NotNull final VmwareCloudInstance instance) throws VmwareCheckedCloudException {
+    final String vmId = instance.getVmId();
+    if (vmId != null) {
+      try {
+        final ManagedObjectReference mor = new ManagedObjectReference();
+        mor.setType(VM_TYPE);
+        mor.setVal(vmId);
+        final VirtualMachine vm = createExactManagedEntity(mor);
+        // the VM might have been deleted or recreated with the same name
+        if (vm != null && instance.getInstanceId().equals(vm.getName())) {
+          return vm;
+        }
+      } catch (Exception ex) {
+        LOG.debug(String.format("Unable to resolve VM %s by id %s: %s", instance.getInstanceId(), vmId, ex.toString()));
+      }
+      instance.setVmId(null);
+    }
+    final VirtualMachine vm = findEntityByIdNameNullableOld(instance.getInstanceId(), VirtualMachine.class, null);
+    if (vm != null) {
+      instance.setVmId(vm.getMOR().getVal());
+    }
+    return vm;
   }
 
   /**
@@ -885,7 +1414,7 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
       rolesSet.add(roleId);
     }
 
-    final AuthorizationManager authorizationManager = myServiceInstance.getAuthorizationManager();
+    final AuthorizationManager authorizationManager = getServiceInstance().getAuthorizationManager();
     if (authorizationManager == null)
       return true; // don't perform the check
 
@@ -909,17 +1438,6 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
   }
 
 
-  protected static Map<String, VirtualMachineSnapshotTree> snapshotNames(@Nullable final VirtualMachineSnapshotTree[] trees) {
-    final Map<String, VirtualMachineSnapshotTree> treeNames = new HashMap<String, VirtualMachineSnapshotTree>();
-    if (trees != null) {
-      for (final VirtualMachineSnapshotTree tree : trees) {
-        treeNames.put(tree.getName(), tree);
-        treeNames.putAll(snapshotNames(tree.getChildSnapshotList()));
-      }
-    }
-    return treeNames;
-  }
-
   private OptionValue createOptionValue(@NotNull final String key, @Nullable final String value) {
     final OptionValue optionValue = new OptionValue();
     optionValue.setKey(key);
@@ -929,8 +1447,9 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
 
   public Task stopInstance(@NotNull final VmwareCloudInstance instance) {
     instance.setStatus(InstanceStatus.STOPPING);
+    invalidateIndexedInstance(instance.getInstanceId());
     try {
-      final VirtualMachine vm = findEntityByIdNameNullableOld(instance.getInstanceId(), VirtualMachine.class, null);
+      final VirtualMachine vm = findInstanceVmNullable(instance);
       if (vm == null){
         // VM no longer exists TW-47486
         instance.getImage().removeInstance(instance.getInstanceId());
@@ -949,77 +1468,13 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
   private Task doShutdown(@NotNull final VmwareCloudInstance instance, @NotNull final VirtualMachine vm) throws VmwareCheckedCloudException {
     try {
       guestShutdown(instance, vm);
-      final long shutdownStartTime = System.currentTimeMillis();
-      return new Task(null, null){
-        private final TaskInfo myInfo = new TaskInfo();
-
-        {myInfo.setState(TaskInfoState.running);}
-
-        @Override
-        public String waitForTask() throws RemoteException, InterruptedException {
-          if (waitForStatus(shutdownStartTime, 5000) != InstanceStatus.STOPPED) {
-            myInfo.setState(TaskInfoState.error);
-          } else {
-            myInfo.setState(TaskInfoState.success);
-          }
-          return myInfo.getState().name();
-        }
-
-        @Override
-        public String waitForTask(final int runningDelayInMillSecond, final int queuedDelayInMillSecond) throws RemoteException, InterruptedException {
-          if (runningDelayInMillSecond >= (System.currentTimeMillis() -  shutdownStartTime)){
-            return waitForTask();
-          } else {
-            final InstanceStatus instanceStatus = waitForStatus(runningDelayInMillSecond, 5000);
-            if (instanceStatus == InstanceStatus.STOPPED){
-              myInfo.setState(TaskInfoState.success);
-            }
-          }
-          return myInfo.getState().name();
-        }
-
-        @Override
-        public TaskInfo getTaskInfo() throws RemoteException {
-          try {
-            final InstanceStatus instanceStatus = waitForStatus(0, 5000);
-            if (instanceStatus == InstanceStatus.STOPPED){
-              myInfo.setState(TaskInfoState.success);
-            }
-          } catch (InterruptedException e) {
-            e.printStackTrace();
-          }
-          return myInfo;
-        }
-
-        public InstanceStatus waitForStatus(long maxWaitTime, long delay) throws RemoteException, InterruptedException {
-          //TODO rework
-          try {
-            VirtualMachine vmCopy = findEntityByIdNameOld(instance.getInstanceId(), VirtualMachine.class).getFirst();
-            final long startHere = System.currentTimeMillis();
-            while (getInstanceStatus(vmCopy) != InstanceStatus.STOPPED && (System.currentTimeMillis() - shutdownStartTime) < SHUTDOWN_TIMEOUT) {
-              if ((System.currentTimeMillis() - startHere) >= maxWaitTime) {
-                break;
-              }
-              Thread.sleep(delay);
-              vmCopy = findEntityByIdNameOld(instance.getInstanceId(), VirtualMachine.class).getFirst();
-            }
-            return getInstanceStatus(vmCopy);
-          } catch (VmwareCheckedCloudException e) {
-            throw new RemoteException(e.getMessage(), e);
-          }
-        }
-
-        @Override
-        public void cancelTask() throws RemoteException {
-          // do nothing;
-        }
-      };
+      return myPowerStateWatcher.watchShutdown(instance.getName(), vm);
     } catch (RemoteException e) {
       LOG.info("Will attempt to force shutdown due to error: " + e.toString());
       try {
         return forceShutdown(vm);
       } catch (RemoteException e1) {
-        throw new VmwareCheckedCloudException(e1);
+        throw wrapException(vm, e1);
       }
     }
   }
@@ -1051,8 +1506,9 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
   @Override
   public Task deleteInstance(final VmwareCloudInstance instance) {
     LOG.info("Will delete instance " + instance.getName());
+    invalidateIndexedInstance(instance.getInstanceId());
     try {
-      final VirtualMachine vm = findEntityByIdNameOld(instance.getInstanceId(), VirtualMachine.class).getFirst();
+      final VirtualMachine vm = findInstanceVm(instance);
       return vm.destroy_Task();
     } catch (Exception e) {
       // stacktrace goes to SDK details, so no value of dumping it to log here
@@ -1063,11 +1519,12 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
   }
 
   public void restartInstance(VmwareCloudInstance instance) throws VmwareCheckedCloudException {
-    final VirtualMachine vm = findEntityByIdNameOld(instance.getInstanceId(), VirtualMachine.class).getFirst();
+    invalidateIndexedInstance(instance.getInstanceId());
+    final VirtualMachine vm = findInstanceVm(instance);
     try {
       vm.rebootGuest();
     } catch (RemoteException e) {
-      throw new VmwareCheckedCloudException(e);
+      throw wrapException(vm, e);
     }
   }
 
@@ -1122,13 +1579,16 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
   }
 
   public void dispose(){
-    try {
-      if (myServiceInstance != null) {
-        final ServerConnection serverConnection = myServiceInstance.getServerConnection();
-        if (serverConnection != null)
-          serverConnection.logout();
+    if (myInventoryWatcher != null) {
+      myInventoryWatcher.detach();
+    }
+    synchronized (this) {
+      if (myDatacenterExecutor != null) {
+        myDatacenterExecutor.shutdownNow();
+        myDatacenterExecutor = null;
       }
-    } catch (Exception ex){}
+    }
+    mySessions.dispose();
   }
 
   public void test() throws VmwareCheckedCloudException {
@@ -1152,8 +1612,10 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
     final Map<VmwareCloudImage, TypedCloudErrorInfo[]> retval = new HashMap<>();
 
     final  Map<String, VirtualMachine> imageVms;
+    final Map<String, Map<String, Object>> imageVmsProperties;
     try {
       imageVms = searchVMsByNames(imageNames, null);
+      imageVmsProperties = retrieveSourceVmsProperties(imageVms.values());
     } catch (VmwareCheckedCloudException e) {
       LOG.warnAndDebugDetails("An error occurred during seaching for VMs", e);
       images.forEach(image->{
@@ -1164,14 +1626,16 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
     images.forEach(image->{
       final VmwareCloudImageDetails imageDetails = image.getImageDetails();
       final VirtualMachine vm = imageVms.get(imageDetails.getSourceVmName());
-      if (vm == null){
+      final Map<String, Object> vmProperties = vm == null ? null : imageVmsProperties.get(vm.getMOR().getVal());
+      if (vmProperties == null){
         retval.put(image, new TypedCloudErrorInfo[]{new TypedCloudErrorInfo("NoVM", "No such VM: " + imageDetails.getSourceVmName())});
         return;
       }
       if (!imageDetails.getBehaviour().isUseOriginal() && !imageDetails.useCurrentVersion()) {
         final String snapshotName = imageDetails.getSnapshotName();
-        final Map<String, VirtualMachineSnapshotTree> snapshotList = getSnapshotList(vm);
-        final String latestSnapshot = getLatestSnapshot(snapshotName, snapshotList);
+        final VirtualMachineSnapshotInfo snapshotInfo = new VirtualMachineSnapshotInfo();
+        snapshotInfo.setRootSnapshotList(getRootSnapshotList(vmProperties));
+        final String latestSnapshot = mySnapshotIndex.getLatestSnapshot(vm.getMOR().getVal(), snapshotInfo, snapshotName);
         if (StringUtil.isNotEmpty(snapshotName) && latestSnapshot == null) {
           retval.put(image, new TypedCloudErrorInfo[]{new TypedCloudErrorInfo("NoSnapshot", "No such snapshot: " + snapshotName)});
           return;
@@ -1197,6 +1661,57 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
     return retval;
   }
 
+  /**
+   * Array properties are returned by the PropertyCollector wrapped into ArrayOf* objects
+   */
+  @Nullable
+  private static VirtualMachineSnapshotTree[] getRootSnapshotList(@NotNull final Map<String, Object> properties){
+    final Object rootSnapshotList = properties.get(ROOT_SNAPSHOT_LIST);
+    return rootSnapshotList == null ? null : ((ArrayOfVirtualMachineSnapshotTree)rootSnapshotList).getVirtualMachineSnapshotTree();
+  }
+
+  /**
+   * Reads the snapshots of the source VMs with a single call
+   *
+   * @return properties of the VMs by MOR, the VMs which are gone are absent
+   */
+  @NotNull
+  protected Map<String, Map<String, Object>> retrieveSourceVmsProperties(@NotNull final Collection<VirtualMachine> vms) throws VmwareCheckedCloudException {
+    if (vms.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    final PropertySpec propertySpec = new PropertySpec();
+    propertySpec.setType(VM_TYPE);
+    propertySpec.setPathSet(SOURCE_VM_PROPERTIES);
+    final PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+    filterSpec.setPropSet(new PropertySpec[]{propertySpec});
+    filterSpec.setObjectSet(vms.stream().map(vm -> {
+      final ObjectSpec objectSpec = new ObjectSpec();
+      objectSpec.setObj(vm.getMOR());
+      return objectSpec;
+    }).toArray(ObjectSpec[]::new));
+    final PropertyCollector collector = getServiceInstance().getPropertyCollector();
+    try {
+      final ObjectContent[] contents = collector.retrieveProperties(new PropertyFilterSpec[]{filterSpec});
+      final Map<String, Map<String, Object>> result = new HashMap<>();
+      if (contents != null) {
+        for (ObjectContent oc : contents) {
+          result.put(oc.getObj().getVal(), getPropertiesMap(oc));
+        }
+      }
+      return result;
+    } catch (ManagedObjectNotFound e) {
+      if (e.getObj() == null) {
+        throw wrapException(collector, e);
+      }
+      // the VM has been deleted after the search
+      final String goneVmId = e.getObj().getVal();
+      return retrieveSourceVmsProperties(vms.stream().filter(vm -> !goneVmId.equals(vm.getMOR().getVal())).collect(Collectors.toList()));
+    } catch (RemoteException e) {
+      throw wrapException(collector, e);
+    }
+  }
+
   @NotNull
   public TypedCloudErrorInfo[] checkInstance(@NotNull final VmwareCloudInstance instance) {
     return new TypedCloudErrorInfo[0];
@@ -1249,4 +1764,43 @@ public class VMWareApiConnectorImpl implements VMWareApiConnector {
   public static String getKey(@NotNull final URL serverUrl, @NotNull final String username, @NotNull final String pwd){
     return String.format("%s_%s%s", serverUrl.toString().toLowerCase(), username.toLowerCase(), EncryptUtil.scramble(pwd));
   }
+
+  /**
+   * Datacenter properties which don't change. The managed objects are not kept, as they are bound to a session
+   */
+  private static class DatacenterInfo {
+    @NotNull private final ManagedObjectReference myMOR;
+    private volatile String myName;
+    private volatile ManagedObjectReference myVmFolder;
+
+    private DatacenterInfo(@NotNull final Datacenter datacenter) {
+      myMOR = datacenter.getMOR();
+    }
+
+    @NotNull
+    public ManagedObjectReference getMOR() {
+      return myMOR;
+    }
+
+    @NotNull
+    public String getId() {
+      return myMOR.getVal();
+    }
+
+    @NotNull
+    public String getName(@NotNull final Datacenter bound) {
+      if (myName == null) {
+        myName = bound.getName();
+      }
+      return myName;
+    }
+
+    @NotNull
+    public Folder getVmFolder(@NotNull final Datacenter bound) throws RemoteException {
+      if (myVmFolder == null) {
+        myVmFolder = bound.getVmFolder().getMOR();
+      }
+      return new Folder(bound.getServerConnection(), myVmFolder);
+    }
+  }
 }
@@ -1,9 +1,16 @@
 package jetbrains.buildServer.clouds.vmware.connector;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import java.net.URL;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.clouds.CloudException;
 import jetbrains.buildServer.clouds.server.CloudInstancesProvider;
+import jetbrains.buildServer.clouds.vmware.VmwareConstants;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.serverSide.crypt.EncryptUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -16,6 +23,10 @@ public class VmwareApiConnectorsPool {
   private static final ConcurrentMap<String, VMWareApiConnector> myConnectors =
     new ConcurrentHashMap<>();
 
+  // connectors for the profile editing pages: a session is logged out after it has been idle for a while.
+  // The cache is rebuilt when the idle timeout is changed
+  private static Cache<String, VMWareApiConnector> myUIConnectors;
+  private static long myUIConnectorsIdleTimeout;
 
   public static VMWareApiConnector getOrCreateConnector(@NotNull final URL instanceURL,
                                                         @NotNull final String username,
@@ -23,11 +34,38 @@ public class VmwareApiConnectorsPool {
                                                         @Nullable final String serverUUID,
                                                         @Nullable final String profileId,
                                                         @Nullable final CloudInstancesProvider instancesProvider){
+    final String key = VMWareApiConnectorImpl.getKey(instanceURL, username, password);
     if (serverUUID == null || profileId == null){ // this is just for fetching data
-      return new VMWareApiConnectorImpl(instanceURL, username, password, serverUUID, profileId, instancesProvider);
+      final Cache<String, VMWareApiConnector> uiConnectors = getUIConnectors();
+      uiConnectors.cleanUp();
+      try {
+        return uiConnectors.get(key, () -> new VMWareApiConnectorImpl(instanceURL, username, password, serverUUID, profileId, instancesProvider));
+      } catch (ExecutionException e) {
+        throw new CloudException(e.getCause().getMessage(), e.getCause());
+      }
     }
 
-    final String key = VMWareApiConnectorImpl.getKey(instanceURL, username, password);
     return myConnectors.computeIfAbsent(key, k->new VMWareApiConnectorImpl(instanceURL, username, password, serverUUID, profileId, instancesProvider));
   }
+
+  @NotNull
+  private static synchronized Cache<String, VMWareApiConnector> getUIConnectors(){
+    final long idleTimeout = TeamCityProperties.getLong(VmwareConstants.UI_CONNECTOR_IDLE_TIMEOUT, 120);
+    if (myUIConnectors == null || myUIConnectorsIdleTimeout != idleTimeout) {
+      if (myUIConnectors != null) {
+        myUIConnectors.invalidateAll();
+      }
+      myUIConnectors = CacheBuilder.newBuilder()
+        .expireAfterAccess(idleTimeout, TimeUnit.SECONDS)
+        .<String, VMWareApiConnector>removalListener(notification -> {
+          final VMWareApiConnector connector = notification.getValue();
+          if (connector != null) {
+            connector.dispose();
+          }
+        })
+        .build();
+      myUIConnectorsIdleTimeout = idleTimeout;
+    }
+    return myUIConnectors;
+  }
 }
@@ -0,0 +1,204 @@
+/*
+ *
+ *  * Copyright 2000-2017 JetBrains s.r.o.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package jetbrains.buildServer.clouds.vmware.connector;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import jetbrains.buildServer.clouds.vmware.VmwareConstants;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Limits the number of clones running at the same time on a vCenter, a host and a datastore.
+ * <br/>
+ * The clones over the limits wait in the queue and are started in order as soon as the running ones complete.
+ * The clones waiting for a busy host or datastore don't hold the clones of the other ones.
+ */
+public class VmwareCloneScheduler {
+  private static final Logger LOG = Logger.getInstance(VmwareCloneScheduler.class.getName());
+  private static final String HOST_PREFIX = "host:";
+  private static final String DATASTORE_PREFIX = "datastore:";
+  private static final long LONG_WAIT = 60 * 1000L;
+
+  // the limits are shared by all the profiles of a vCenter
+  private static final Map<String, VmwareCloneScheduler> SCHEDULERS = new HashMap<>();
+
+  private final String myServerKey;
+  private final Deque<CloneRequest> myQueue = new ArrayDeque<>();
+  // number of the running clones by resource
+  private final Map<String, Integer> myRunning = new HashMap<>();
+  private int myRunningTotal = 0;
+  private long myMaxWaitTime = 0;
+  private long myTotalWaitTime = 0;
+  private long myAdmittedCount = 0;
+
+  private VmwareCloneScheduler(@NotNull final String serverKey) {
+    myServerKey = serverKey;
+  }
+
+  @NotNull
+  public static VmwareCloneScheduler getInstance(@NotNull final String serverKey){
+    synchronized (SCHEDULERS) {
+      return SCHEDULERS.computeIfAbsent(serverKey, VmwareCloneScheduler::new);
+    }
+  }
+
+  @NotNull
+  public static String hostResource(@NotNull final String hostId){
+    return HOST_PREFIX + hostId;
+  }
+
+  @NotNull
+  public static String datastoreResource(@NotNull final String datastoreId){
+    return DATASTORE_PREFIX + datastoreId;
+  }
+
+  public static boolean isEnabled(){
+    return getVCenterLimit() > 0 || getHostLimit() > 0 || getDatastoreLimit() > 0;
+  }
+
+  /**
+   * Runs the clone on the executor as soon as the limits allow.
+   * <br/>
+   * The clone gets a callback to call when the clone task is completed, the resources are released then
+   *
+   * @param resources hosts and datastores the clone uses, see {@link #hostResource(String)} and {@link #datastoreResource(String)}
+   */
+  public void submit(@NotNull final String name,
+                     @NotNull final Collection<String> resources,
+                     @NotNull final Executor executor,
+                     @NotNull final Consumer<Runnable> clone){
+    final CloneRequest request = new CloneRequest(name, resources, executor, clone);
+    synchronized (this) {
+      myQueue.add(request);
+    }
+    dispatch();
+  }
+
+  public synchronized int getQueueSize(){
+    return myQueue.size();
+  }
+
+  public synchronized int getRunningCount(){
+    return myRunningTotal;
+  }
+
+  public synchronized long getAverageWaitTime(){
+    return myAdmittedCount == 0 ? 0 : myTotalWaitTime / myAdmittedCount;
+  }
+
+  public synchronized long getMaxWaitTime(){
+    return myMaxWaitTime;
+  }
+
+  private void dispatch(){
+    final List<CloneRequest> admitted = new ArrayList<>();
+    synchronized (this) {
+      final Iterator<CloneRequest> iterator = myQueue.iterator();
+      while (iterator.hasNext()) {
+        final int vCenterLimit = getVCenterLimit();
+        if (vCenterLimit > 0 && myRunningTotal >= vCenterLimit)
+          break;
+        final CloneRequest request = iterator.next();
+        if (!canAdmit(request))
+          continue;
+        iterator.remove();
+        myRunningTotal++;
+        request.myResources.forEach(r -> myRunning.merge(r, 1, Integer::sum));
+        recordWaitTime(request);
+        admitted.add(request);
+      }
+    }
+    for (CloneRequest request : admitted) {
+      try {
+        request.myExecutor.execute(() -> request.myClone.accept(() -> release(request)));
+      } catch (Exception ex) {
+        LOG.warn("Unable to start " + request.myName + ": " + ex.toString());
+        release(request);
+      }
+    }
+  }
+
+  private void release(@NotNull final CloneRequest request){
+    if (!request.myReleased.compareAndSet(false, true))
+      return;
+    synchronized (this) {
+      myRunningTotal--;
+      request.myResources.forEach(r -> myRunning.computeIfPresent(r, (k, v) -> v > 1 ? v - 1 : null));
+    }
+    dispatch();
+  }
+
+  private boolean canAdmit(@NotNull final CloneRequest request){
+    for (String resource : request.myResources) {
+      final int limit = resource.startsWith(HOST_PREFIX) ? getHostLimit() : getDatastoreLimit();
+      if (limit > 0 && myRunning.getOrDefault(resource, 0) >= limit)
+        return false;
+    }
+    return true;
+  }
+
+  private void recordWaitTime(@NotNull final CloneRequest request){
+    final long waitTime = System.currentTimeMillis() - request.mySubmitTime;
+    myAdmittedCount++;
+    myTotalWaitTime += waitTime;
+    myMaxWaitTime = Math.max(myMaxWaitTime, waitTime);
+    final String message = String.format("%s waited %d ms for the clone limits of %s. Running: %d, queued: %d",
+                                         request.myName, waitTime, myServerKey, myRunningTotal, myQueue.size());
+    if (waitTime > LONG_WAIT) {
+      LOG.info(message);
+    } else {
+      LOG.debug(message);
+    }
+  }
+
+  private static int getVCenterLimit(){
+    return TeamCityProperties.getInteger(VmwareConstants.CLONE_LIMIT_PER_VCENTER, 0);
+  }
+
+  private static int getHostLimit(){
+    return TeamCityProperties.getInteger(VmwareConstants.CLONE_LIMIT_PER_HOST, 0);
+  }
+
+  private static int getDatastoreLimit(){
+    return TeamCityProperties.getInteger(VmwareConstants.CLONE_LIMIT_PER_DATASTORE, 0);
+  }
+
+  private static class CloneRequest {
+    private final String myName;
+    private final Collection<String> myResources;
+    private final Executor myExecutor;
+    private final Consumer<Runnable> myClone;
+    private final long mySubmitTime = System.currentTimeMillis();
+    private final AtomicBoolean myReleased = new AtomicBoolean();
+
+    private CloneRequest(@NotNull final String name,
+                         @NotNull final Collection<String> resources,
+                         @NotNull final Executor executor,
+                         @NotNull final Consumer<Runnable> clone) {
+      myName = name;
+      myResources = new HashSet<>(resources);
+      myExecutor = executor;
+      myClone = clone;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ *
+ *  * Copyright 2000-2017 JetBrains s.r.o.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package jetbrains.buildServer.clouds.vmware.connector;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.vmware.vim25.OptionValue;
+import java.util.*;
+import jetbrains.buildServer.clouds.vmware.VMWarePropertiesNames;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Immutable snapshot of the VM extraConfig that retains only the keys read by TeamCity.
+ * <br/>
+ * Values are kept in fixed slots, the values shared by many VMs (image names, snapshots, profile ids and so on) are interned.
+ */
+public class VmwareExtraConfig {
+  // teamcity.vmware.* keys, the values are shared by many VMs
+  private static final List<String> VMWARE_KEYS = Arrays.asList(
+    VMWareApiConnector.TEAMCITY_VMWARE_IMAGE_CHANGE_VERSION,
+    VMWareApiConnector.TEAMCITY_VMWARE_IMAGE_SNAPSHOT,
+    VMWareApiConnector.TEAMCITY_VMWARE_IMAGE_SOURCE_VM_NAME,
+    VMWareApiConnector.TEAMCITY_VMWARE_IMAGE_SOURCE_VM_ID,
+    VMWareApiConnector.TEAMCITY_VMWARE_IMAGE_SOURCE_ID,
+    VMWareApiConnector.TEAMCITY_VMWARE_CLONED_INSTANCE,
+    VMWareApiConnector.TEAMCITY_VMWARE_PROFILE_ID,
+    VMWareApiConnector.TEAMCITY_VMWARE_SERVER_UUID,
+    VMWareApiConnector.TEAMCITY_VMWARE_WARM_CLONE
+  );
+  private static final List<String> AGENT_KEYS = Arrays.asList(
+    VMWarePropertiesNames.AGENT_NAME,
+    VMWarePropertiesNames.AUTH_TOKEN,
+    VMWarePropertiesNames.SERVER_URL,
+    VMWarePropertiesNames.INSTANCE_NAME,
+    VMWarePropertiesNames.IMAGE_NAME,
+    VMWarePropertiesNames.USER_DATA
+  );
+  // the first slots are occupied by the teamcity.vmware.* keys
+  private static final int VMWARE_KEYS_COUNT = VMWARE_KEYS.size();
+  private static final List<String> KEYS;
+  static {
+    final List<String> keys = new ArrayList<>(VMWARE_KEYS);
+    keys.addAll(AGENT_KEYS);
+    KEYS = Collections.unmodifiableList(keys);
+  }
+  private static final Map<String, Integer> SLOTS = new HashMap<>();
+  static {
+    for (int i = 0; i < KEYS.size(); i++) {
+      SLOTS.put(KEYS.get(i), i);
+    }
+  }
+  private static final Interner<String> VALUES = Interners.newWeakInterner();
+
+  private final String[] myValues;
+
+  private VmwareExtraConfig(@NotNull final String[] values) {
+    myValues = values;
+  }
+
+  /**
+   * @return keys retained by this class
+   */
+  @NotNull
+  public static List<String> getKeys(){
+    return KEYS;
+  }
+
+  @NotNull
+  public static VmwareExtraConfig from(@NotNull final OptionValue[] extraConfig){
+    final String[] values = new String[KEYS.size()];
+    for (OptionValue optionValue : extraConfig) {
+      final Integer slot = SLOTS.get(optionValue.getKey());
+      if (slot != null) {
+        final String value = String.valueOf(optionValue.getValue());
+        // agent-specific values are unique per VM, no sense to intern them
+        values[slot] = slot < VMWARE_KEYS_COUNT ? VALUES.intern(value) : value;
+      }
+    }
+    return new VmwareExtraConfig(values);
+  }
+
+  @Nullable
+  public String get(@NotNull final String key){
+    final Integer slot = SLOTS.get(key);
+    return slot == null ? null : myValues[slot];
+  }
+
+  @NotNull
+  public Map<String, String> asMap(){
+    final Map<String, String> result = new HashMap<>();
+    for (int i = 0; i < myValues.length; i++) {
+      if (myValues[i] != null) {
+        result.put(KEYS.get(i), myValues[i]);
+      }
+    }
+    return Collections.unmodifiableMap(result);
+  }
+}
@@ -41,7 +41,7 @@ public class VmwareInstance extends AbstractInstance implements VmwareManagedEnt
   private static final Logger LOG = Logger.getInstance(VmwareInstance.class.getName());
 
   private final String myId;
-  @NotNull private final OptionValue[] myExtraConfig;
+  @Nullable private final VmwareExtraConfig myExtraConfig;
   @NotNull private final VirtualMachinePowerState myPowerState;
   @NotNull private final boolean myIsTemplate;
   @NotNull private final String myChangeVersion;
@@ -49,7 +49,6 @@ public class VmwareInstance extends AbstractInstance implements VmwareManagedEnt
   @Nullable private final String myIpAddress;
   @Nullable private final ManagedObjectReference myParent;
   @NotNull private final String myDatacenterId;
-  private final Map<String, String> myProperties;
   private final String myName;
 
   @Used("Tests")
@@ -78,9 +77,8 @@ public class VmwareInstance extends AbstractInstance implements VmwareManagedEnt
                         @NotNull final String datacenterId
                         ) {
     myName = name;
-    myProperties = extractProperties(extraConfig);
     myId = id;
-    myExtraConfig = extraConfig;
+    myExtraConfig = extractProperties(extraConfig);
     myPowerState = powerState;
     myIsTemplate = isTemplate;
     myChangeVersion = changeVersion;
@@ -92,13 +90,9 @@ public class VmwareInstance extends AbstractInstance implements VmwareManagedEnt
 
 
   @Nullable
-  private  Map<String, String> extractProperties(@NotNull final OptionValue[] configInfo) {
+  private VmwareExtraConfig extractProperties(@NotNull final OptionValue[] configInfo) {
     try {
-      Map<String, String> retval = new HashMap<String, String>();
-      for (OptionValue optionValue : configInfo) {
-        retval.put(optionValue.getKey(), String.valueOf(optionValue.getValue()));
-      }
-      return retval;
+      return VmwareExtraConfig.from(configInfo);
     } catch (Exception ex){
       LOG.info("Unable to retrieve instance properties for " + myName  + ": " + ex.toString());
       return null;
@@ -124,12 +118,12 @@ public class VmwareInstance extends AbstractInstance implements VmwareManagedEnt
 
   @Override
   public boolean isInitialized() {
-    return myProperties != null;
+    return myExtraConfig != null;
   }
 
   @Nullable
   public String getProperty(@NotNull final String propertyName) {
-    return myProperties == null ? null : myProperties.get(propertyName);
+    return myExtraConfig == null ? null : myExtraConfig.get(propertyName);
   }
 
   @Nullable
@@ -206,8 +200,11 @@ public class VmwareInstance extends AbstractInstance implements VmwareManagedEnt
     return nickname == null ? getProperty(VMWareApiConnector.TEAMCITY_VMWARE_IMAGE_SOURCE_VM_NAME) : nickname;
   }
 
+  /**
+   * @return TeamCity-related extraConfig values of this VM, see {@link VmwareExtraConfig}
+   */
   public Map<String, String> getProperties() {
-    return Collections.unmodifiableMap(myProperties);
+    return myExtraConfig == null ? Collections.emptyMap() : myExtraConfig.asMap();
   }
 
   @Nullable
@@ -223,6 +220,10 @@ public class VmwareInstance extends AbstractInstance implements VmwareManagedEnt
     return "true".equals(getProperty(VMWareApiConnector.TEAMCITY_VMWARE_CLONED_INSTANCE));
   }
 
+  public boolean isWarmClone(){
+    return "true".equals(getProperty(VMWareApiConnector.TEAMCITY_VMWARE_WARM_CLONE));
+  }
+
   @Override
   public int compareTo(@NotNull final VmwareInstance o) {
     return StringUtil.compare(StringUtil.toLowerCase(myName), StringUtil.toLowerCase(o.myName));
@@ -0,0 +1,117 @@
+/*
+ *
+ *  * Copyright 2000-2017 JetBrains s.r.o.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package jetbrains.buildServer.clouds.vmware.connector;
+
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.mo.Datacenter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Calculates inventory paths of the entities of a datacenter from a parent-pointer table,
+ * which is filled with a single PropertyCollector call (see {@link #TYPEINFO}).
+ * <br/>
+ * Paths are the same as the ones built by walking the parents one by one: special folders and pools are skipped.
+ */
+class VmwareInventoryPaths {
+  static final String[][] TYPEINFO = {
+    {"Folder", "name", "parent"},
+    {"ResourcePool", "name", "parent"},
+    {"ComputeResource", "name", "parent"},
+    {"Datacenter", "name", "parent"},
+  };
+  private static final String DATACENTER_TYPE = Datacenter.class.getSimpleName();
+
+  private final Map<String, Node> myNodes = new HashMap<>();
+  private final Map<String, String> myPaths = new HashMap<>();
+  private final Function<ManagedObjectReference, String> myFallback;
+
+  /**
+   * @param ocs result of the {@link #TYPEINFO} query
+   * @param fallback calculates the path of an entity missing in the table
+   */
+  VmwareInventoryPaths(@Nullable final ObjectContent[] ocs, @NotNull final Function<ManagedObjectReference, String> fallback) {
+    myFallback = fallback;
+    if (ocs == null)
+      return;
+    for (ObjectContent oc : ocs) {
+      if (oc.getPropSet() == null)
+        continue;
+      String name = null;
+      ManagedObjectReference parent = null;
+      for (DynamicProperty property : oc.getPropSet()) {
+        if ("name".equals(property.getName())) {
+          name = String.valueOf(property.getVal());
+        } else if ("parent".equals(property.getName())) {
+          parent = (ManagedObjectReference)property.getVal();
+        }
+      }
+      if (name != null) {
+        myNodes.put(key(oc.getObj()), new Node(name, parent));
+      }
+    }
+  }
+
+  /**
+   * @return full path of the entity, the same as {@code VMWareApiConnectorImpl.getFullMORPath} returns
+   */
+  @NotNull
+  synchronized String getPath(@NotNull final ManagedObjectReference mor){
+    final String key = key(mor);
+    String path = myPaths.get(key);
+    if (path != null)
+      return path;
+
+    final Node node = myNodes.get(key);
+    if (node == null) {
+      path = myFallback.apply(mor);
+    } else {
+      final boolean skipName = VmwareUtils.isSkippedInPath(mor, node.myName);
+      // all the folders above a datacenter are skipped, no need to walk them
+      if (node.myParent == null || DATACENTER_TYPE.equals(mor.getType())) {
+        path = skipName ? "" : node.myName;
+      } else {
+        final String parentPath = getPath(node.myParent);
+        final String delimiter = parentPath.isEmpty() ? "" : "/";
+        path = skipName ? parentPath : parentPath + delimiter + node.myName;
+      }
+    }
+    myPaths.put(key, path);
+    return path;
+  }
+
+  private static String key(@NotNull final ManagedObjectReference mor){
+    return mor.getType() + "|" + mor.getVal();
+  }
+
+  private static class Node {
+    private final String myName;
+    @Nullable private final ManagedObjectReference myParent;
+
+    private Node(@NotNull final String name, @Nullable final ManagedObjectReference parent) {
+      myName = name;
+      myParent = parent;
+    }
+  }
+}
@@ -0,0 +1,268 @@
+/*
+ *
+ *  * Copyright 2000-2017 JetBrains s.r.o.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package jetbrains.buildServer.clouds.vmware.connector;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.vmware.vim25.*;
+import com.vmware.vim25.mo.Datacenter;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.PropertyFilter;
+import com.vmware.vim25.mo.ServiceInstance;
+import java.rmi.RemoteException;
+import java.util.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps an in-memory index of the inventory objects of a single type.
+ * <br/>
+ * The index is filled by the first <code>WaitForUpdatesEx</code> call and then only the version deltas are applied to it.
+ * The full rescan is performed only when vCenter doesn't recognize the version token anymore.
+ * The datacenters created or removed later are picked up by {@link #updateDatacenters(Collection)}.
+ */
+public class VmwareInventoryWatcher {
+  private static final Logger LOG = Logger.getInstance(VmwareInventoryWatcher.class.getName());
+
+  private final String[] myTypeInfo;
+  private final Map<String, ObjectState> myObjects = new HashMap<>();
+  // filter MOR -> datacenter MOR
+  private final Map<String, String> myFilterDatacenters = new HashMap<>();
+  // datacenter MOR -> filter
+  private final Map<String, PropertyFilter> myDatacenterFilters = new HashMap<>();
+
+  private ServiceInstance myServiceInstance;
+  private PropertyCollector myCollector;
+  private String myVersion;
+
+  /**
+   * @param typeInfo managed object type followed by the property paths to watch, i.e. <code>{"VirtualMachine", "name", "parent"}</code>
+   */
+  public VmwareInventoryWatcher(@NotNull final String[] typeInfo) {
+    myTypeInfo = typeInfo;
+  }
+
+  public synchronized boolean isAttachedTo(@Nullable final ServiceInstance serviceInstance){
+    return myCollector != null && myServiceInstance == serviceInstance;
+  }
+
+  /**
+   * Creates a dedicated property collector with a filter per datacenter. Previous collector (if any) is destroyed.
+   */
+  public synchronized void attach(@NotNull final ServiceInstance serviceInstance,
+                                  @NotNull final Collection<Datacenter> datacenters) throws RemoteException {
+    detach();
+    myServiceInstance = serviceInstance;
+    myCollector = serviceInstance.getPropertyCollector().createPropertyCollector();
+    myVersion = "";
+    updateDatacenters(datacenters);
+  }
+
+  /**
+   * Adds the filters for the new datacenters and destroys the filters of the removed ones. The objects of a new datacenter
+   * come with the next {@link #sync()}, the objects of a removed one are dropped right away
+   */
+  public synchronized void updateDatacenters(@NotNull final Collection<Datacenter> datacenters) throws RemoteException {
+    if (myCollector == null){
+      throw new IllegalStateException("Inventory watcher is not attached");
+    }
+    final Set<String> datacenterIds = new HashSet<>();
+    for (Datacenter dc : datacenters) {
+      final String datacenterId = dc.getMOR().getVal();
+      datacenterIds.add(datacenterId);
+      if (myDatacenterFilters.containsKey(datacenterId))
+        continue;
+      final PropertyFilter filter = myCollector.createFilter(VmwareUtils.createFilterSpec(dc.getMOR(), new String[][]{myTypeInfo}), false);
+      myFilterDatacenters.put(filter.getMOR().getVal(), datacenterId);
+      myDatacenterFilters.put(datacenterId, filter);
+      LOG.debug(String.format("Watching %s objects in datacenter %s", myTypeInfo[0], datacenterId));
+    }
+    for (Iterator<Map.Entry<String, PropertyFilter>> it = myDatacenterFilters.entrySet().iterator(); it.hasNext(); ) {
+      final Map.Entry<String, PropertyFilter> entry = it.next();
+      if (datacenterIds.contains(entry.getKey()))
+        continue;
+      LOG.debug(String.format("Datacenter %s is gone, won't watch it anymore", entry.getKey()));
+      it.remove();
+      myFilterDatacenters.remove(entry.getValue().getMOR().getVal());
+      myObjects.values().removeIf(state -> entry.getKey().equals(state.myDatacenterId));
+      try {
+        entry.getValue().destroyPropertyFilter();
+      } catch (Exception ex) {
+        LOG.debug("Unable to destroy the filter of datacenter " + entry.getKey() + ": " + ex.toString());
+      }
+    }
+  }
+
+  public synchronized void detach(){
+    if (myCollector != null) {
+      try {
+        myCollector.destroyPropertyCollector();
+      } catch (Exception ex) {
+        LOG.debug("Unable to destroy property collector: " + ex.toString());
+      }
+    }
+    myCollector = null;
+    myServiceInstance = null;
+    myVersion = null;
+    myFilterDatacenters.clear();
+    myDatacenterFilters.clear();
+    myObjects.clear();
+  }
+
+  /**
+   * Applies all the changes happened since the previous call and returns the current state of the watched objects.
+   * The returned states are copies, so they are not affected by the concurrent calls.
+   */
+  @NotNull
+  public synchronized Collection<ObjectState> sync() throws RemoteException {
+    if (myCollector == null){
+      throw new IllegalStateException("Inventory watcher is not attached");
+    }
+    try {
+      pullUpdates();
+    } catch (InvalidCollectorVersion ex){
+      LOG.info("Inventory version '" + myVersion + "' is no longer valid. Will perform full rescan");
+      myObjects.clear();
+      myVersion = "";
+      pullUpdates();
+    }
+    final List<ObjectState> result = new ArrayList<>(myObjects.size());
+    for (ObjectState state : myObjects.values()) {
+      result.add(new ObjectState(state));
+    }
+    return result;
+  }
+
+  private void pullUpdates() throws RemoteException {
+    final WaitOptions options = new WaitOptions();
+    options.setMaxWaitSeconds(0);
+    while (true) {
+      final UpdateSet updateSet = myCollector.waitForUpdatesEx(myVersion, options);
+      if (updateSet == null) {
+        // nothing has changed
+        return;
+      }
+      myVersion = updateSet.getVersion();
+      final PropertyFilterUpdate[] filterSet = updateSet.getFilterSet();
+      if (filterSet != null) {
+        for (PropertyFilterUpdate filterUpdate : filterSet) {
+          applyFilterUpdate(filterUpdate);
+        }
+      }
+      if (!Boolean.TRUE.equals(updateSet.getTruncated())) {
+        return;
+      }
+    }
+  }
+
+  private void applyFilterUpdate(@NotNull final PropertyFilterUpdate filterUpdate){
+    final String datacenterId = myFilterDatacenters.get(filterUpdate.getFilter().getVal());
+    final ObjectUpdate[] objectSet = filterUpdate.getObjectSet();
+    if (objectSet == null)
+      return;
+    for (ObjectUpdate objectUpdate : objectSet) {
+      final String id = objectUpdate.getObj().getVal();
+      if (objectUpdate.getKind() == ObjectUpdateKind.leave) {
+        myObjects.remove(id);
+        continue;
+      }
+      ObjectState state = myObjects.get(id);
+      if (state == null) {
+        state = new ObjectState(id, datacenterId);
+        myObjects.put(id, state);
+      }
+      final PropertyChange[] changeSet = objectUpdate.getChangeSet();
+      if (changeSet != null) {
+        for (PropertyChange change : changeSet) {
+          state.apply(change);
+        }
+      }
+    }
+  }
+
+  public static class ObjectState {
+    private final String myId;
+    private final String myDatacenterId;
+    private final Map<String, Object> myProperties;
+
+    private ObjectState(@NotNull final String id, @Nullable final String datacenterId) {
+      myId = id;
+      myDatacenterId = datacenterId;
+      myProperties = new HashMap<>();
+    }
+
+    // the changed array values are replaced rather than modified, so a shallow copy is enough
+    private ObjectState(@NotNull final ObjectState source) {
+      myId = source.myId;
+      myDatacenterId = source.myDatacenterId;
+      myProperties = new HashMap<>(source.myProperties);
+    }
+
+    @NotNull
+    public String getId() {
+      return myId;
+    }
+
+    @NotNull
+    public String getDatacenterId() {
+      return myDatacenterId == null ? "" : myDatacenterId;
+    }
+
+    @NotNull
+    public Map<String, Object> getProperties() {
+      return Collections.unmodifiableMap(myProperties);
+    }
+
+    private void apply(@NotNull final PropertyChange change){
+      final String name = change.getName();
+      final int keyStart = name.indexOf("[\"");
+      if (keyStart > 0 && name.endsWith("\"]")) {
+        // a single element of a keyed array has changed, i.e. config.extraConfig["guestinfo.tcAgentName"]
+        applyElementChange(name.substring(0, keyStart), name.substring(keyStart + 2, name.length() - 2), change);
+        return;
+      }
+      if (change.getOp() == PropertyChangeOp.remove || change.getOp() == PropertyChangeOp.indirectRemove || change.getVal() == null) {
+        myProperties.remove(name);
+      } else {
+        myProperties.put(name, change.getVal());
+      }
+    }
+
+    private void applyElementChange(@NotNull final String name, @NotNull final String key, @NotNull final PropertyChange change){
+      final Object value = myProperties.get(name);
+      if (value != null && !(value instanceof ArrayOfOptionValue)) {
+        LOG.debug(String.format("Unexpected element change of '%s' for %s. Property is ignored", change.getName(), myId));
+        return;
+      }
+      final List<OptionValue> options = new ArrayList<>();
+      if (value != null && ((ArrayOfOptionValue)value).getOptionValue() != null) {
+        for (OptionValue optionValue : ((ArrayOfOptionValue)value).getOptionValue()) {
+          if (!key.equals(optionValue.getKey())) {
+            options.add(optionValue);
+          }
+        }
+      }
+      if (change.getOp() != PropertyChangeOp.remove && change.getOp() != PropertyChangeOp.indirectRemove && change.getVal() instanceof OptionValue) {
+        options.add((OptionValue)change.getVal());
+      }
+      final ArrayOfOptionValue newValue = new ArrayOfOptionValue();
+      newValue.setOptionValue(options.toArray(new OptionValue[options.size()]));
+      myProperties.put(name, newValue);
+    }
+  }
+}
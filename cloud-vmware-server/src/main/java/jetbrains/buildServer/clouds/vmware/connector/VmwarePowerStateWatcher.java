@@ -0,0 +1,218 @@
+/*
+ *
+ *  * Copyright 2000-2017 JetBrains s.r.o.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package jetbrains.buildServer.clouds.vmware.connector;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.vmware.vim25.*;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServerConnection;
+import com.vmware.vim25.mo.Task;
+import com.vmware.vim25.mo.VirtualMachine;
+import java.rmi.RemoteException;
+import java.util.*;
+import jetbrains.buildServer.clouds.vmware.VmwareConstants;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Tracks the guest shutdowns of the stopping VMs.
+ * <br/>
+ * The power states of all the stopping VMs are read with one call, when any of their tasks is checked.
+ * A VM which doesn't stop in time is powered off.
+ */
+public class VmwarePowerStateWatcher {
+  private static final Logger LOG = Logger.getInstance(VmwarePowerStateWatcher.class.getName());
+  // the tasks are checked one by one, one vCenter call is enough for all of them
+  private static final long MIN_REFRESH_INTERVAL = 1000;
+  private static final String[] POWER_STATE_PROPERTY = {"runtime.powerState"};
+
+  // VM MOR -> shutdown
+  private final Map<String, Shutdown> myShutdowns = new HashMap<>();
+  private long myLastRefresh;
+
+  /**
+   * @return task completed when the VM is powered off
+   */
+  @NotNull
+  public synchronized Task watchShutdown(@NotNull final String instanceName, @NotNull final VirtualMachine vm){
+    final Shutdown shutdown = new Shutdown(instanceName, vm);
+    myShutdowns.put(vm.getMOR().getVal(), shutdown);
+    return new ShutdownTask(shutdown);
+  }
+
+  private synchronized void refresh(){
+    if (myShutdowns.isEmpty() || System.currentTimeMillis() - myLastRefresh < MIN_REFRESH_INTERVAL)
+      return;
+    myLastRefresh = System.currentTimeMillis();
+    final long timeout = TeamCityProperties.getLong(VmwareConstants.SHUTDOWN_TIMEOUT, 60) * 1000;
+    final Map<String, VirtualMachinePowerState> powerStates = getPowerStates(myShutdowns.values());
+    final Iterator<Shutdown> iterator = myShutdowns.values().iterator();
+    while (iterator.hasNext()) {
+      final Shutdown shutdown = iterator.next();
+      final String vmId = shutdown.myVm.getMOR().getVal();
+      if (powerStates.containsKey(vmId) && powerStates.get(vmId) != VirtualMachinePowerState.poweredOn) {
+        // powered off or deleted
+        shutdown.complete(null);
+      } else if (shutdown.myPowerOffTime == 0 && System.currentTimeMillis() - shutdown.myStartTime > timeout) {
+        powerOff(shutdown);
+      } else if (shutdown.myPowerOffTime > 0 && System.currentTimeMillis() - shutdown.myPowerOffTime > timeout) {
+        shutdown.complete("Unable to stop " + shutdown.myInstanceName + " in time");
+      }
+      if (shutdown.myState != TaskInfoState.running) {
+        iterator.remove();
+      }
+    }
+  }
+
+  private void powerOff(@NotNull final Shutdown shutdown){
+    LOG.info(String.format("Guest shutdown of '%s' takes too long. Will power it off", shutdown.myInstanceName));
+    shutdown.myPowerOffTime = System.currentTimeMillis();
+    try {
+      shutdown.myVm.powerOffVM_Task();
+    } catch (InvalidPowerState e) {
+      shutdown.complete(null);
+    } catch (Exception e) {
+      LOG.warn(String.format("Unable to power off '%s': %s", shutdown.myInstanceName, e.toString()));
+      shutdown.complete("Unable to power off " + shutdown.myInstanceName + ": " + e.toString());
+    }
+  }
+
+  /**
+   * @return power states of the VMs, null for the deleted ones. The VMs with unknown state are absent
+   */
+  @NotNull
+  private static Map<String, VirtualMachinePowerState> getPowerStates(@NotNull final Collection<Shutdown> shutdowns){
+    final Map<String, VirtualMachinePowerState> result = new HashMap<>();
+    final ServerConnection serverConnection = shutdowns.iterator().next().myVm.getServerConnection();
+    if (serverConnection != null && serverConnection.getServiceInstance() != null) {
+      try {
+        final PropertySpec propertySpec = new PropertySpec();
+        propertySpec.setType(VirtualMachine.class.getSimpleName());
+        propertySpec.setPathSet(POWER_STATE_PROPERTY);
+        final List<ObjectSpec> objectSpecs = new ArrayList<>();
+        for (Shutdown shutdown : shutdowns) {
+          final ObjectSpec objectSpec = new ObjectSpec();
+          objectSpec.setObj(shutdown.myVm.getMOR());
+          objectSpecs.add(objectSpec);
+        }
+        final PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+        filterSpec.setPropSet(new PropertySpec[]{propertySpec});
+        filterSpec.setObjectSet(objectSpecs.toArray(new ObjectSpec[objectSpecs.size()]));
+        final PropertyCollector collector = serverConnection.getServiceInstance().getPropertyCollector();
+        final ObjectContent[] contents = collector.retrieveProperties(new PropertyFilterSpec[]{filterSpec});
+        if (contents != null) {
+          for (ObjectContent content : contents) {
+            if (content.getPropSet() != null && content.getPropSet().length > 0) {
+              result.put(content.getObj().getVal(), (VirtualMachinePowerState)content.getPropSet()[0].getVal());
+            }
+          }
+        }
+        return result;
+      } catch (ManagedObjectNotFound e) {
+        // the others are read with the next refresh
+        if (e.getObj() != null) {
+          result.put(e.getObj().getVal(), null);
+        }
+        return result;
+      } catch (Exception e) {
+        LOG.debug("Unable to read power states of the stopping VMs, will check them one by one: " + e.toString());
+      }
+    }
+    for (Shutdown shutdown : shutdowns) {
+      try {
+        final VirtualMachineRuntimeInfo runtime = shutdown.myVm.getRuntime();
+        result.put(shutdown.myVm.getMOR().getVal(), runtime == null ? null : runtime.getPowerState());
+      } catch (Exception e) {
+        if (e.getCause() instanceof ManagedObjectNotFound) {
+          result.put(shutdown.myVm.getMOR().getVal(), null);
+        } else {
+          LOG.debug("Unable to read power state of " + shutdown.myInstanceName + ": " + e.toString());
+        }
+      }
+    }
+    return result;
+  }
+
+  private static class Shutdown {
+    private final String myInstanceName;
+    private final VirtualMachine myVm;
+    private final long myStartTime = System.currentTimeMillis();
+    private long myPowerOffTime = 0;
+    private volatile TaskInfoState myState = TaskInfoState.running;
+    private volatile String myError;
+
+    private Shutdown(@NotNull final String instanceName, @NotNull final VirtualMachine vm) {
+      myInstanceName = instanceName;
+      myVm = vm;
+    }
+
+    private void complete(@Nullable final String error){
+      myError = error;
+      myState = error == null ? TaskInfoState.success : TaskInfoState.error;
+    }
+  }
+
+  private class ShutdownTask extends Task {
+    private final Shutdown myShutdown;
+
+    private ShutdownTask(@NotNull final Shutdown shutdown) {
+      super(null, null);
+      myShutdown = shutdown;
+    }
+
+    @Override
+    public TaskInfo getTaskInfo() throws RemoteException {
+      if (myShutdown.myState == TaskInfoState.running) {
+        refresh();
+      }
+      final TaskInfo info = new TaskInfo();
+      info.setState(myShutdown.myState);
+      if (myShutdown.myError != null) {
+        final LocalizedMethodFault fault = new LocalizedMethodFault();
+        fault.setLocalizedMessage(myShutdown.myError);
+        info.setError(fault);
+      }
+      return info;
+    }
+
+    @Override
+    public String waitForTask() throws RemoteException, InterruptedException {
+      // the task is normally checked with getTaskInfo and waited for after it is completed
+      while (getTaskInfo().getState() == TaskInfoState.running) {
+        Thread.sleep(MIN_REFRESH_INTERVAL);
+      }
+      return myShutdown.myState.name();
+    }
+
+    @Override
+    public String waitForTask(final int runningDelayInMillSecond, final int queuedDelayInMillSecond) throws RemoteException, InterruptedException {
+      final long waitStart = System.currentTimeMillis();
+      while (getTaskInfo().getState() == TaskInfoState.running && System.currentTimeMillis() - waitStart < runningDelayInMillSecond) {
+        Thread.sleep(MIN_REFRESH_INTERVAL);
+      }
+      return myShutdown.myState.name();
+    }
+
+    @Override
+    public void cancelTask() throws RemoteException {
+      // do nothing;
+    }
+  }
+}
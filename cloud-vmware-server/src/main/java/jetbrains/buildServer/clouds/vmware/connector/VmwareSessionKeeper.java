@@ -0,0 +1,178 @@
+/*
+ *
+ *  * Copyright 2000-2017 JetBrains s.r.o.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package jetbrains.buildServer.clouds.vmware.connector;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.vmware.vim25.NotAuthenticated;
+import com.vmware.vim25.mo.ServerConnection;
+import com.vmware.vim25.mo.ServiceInstance;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.rmi.RemoteException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import jetbrains.buildServer.clouds.vmware.VmwareConstants;
+import jetbrains.buildServer.clouds.vmware.errors.VmwareCheckedCloudException;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps a vCenter session alive.
+ * <br/>
+ * The current session is published without locking, so callers don't validate it before each call.
+ * The session is dropped when the heartbeat or a regular call fails with {@link NotAuthenticated} and the next caller logs in again.
+ */
+public class VmwareSessionKeeper {
+  private static final Logger LOG = Logger.getInstance(VmwareSessionKeeper.class.getName());
+  private static final ScheduledExecutorService HEARTBEAT_EXECUTOR = ExecutorsFactory.newFixedScheduledDaemonExecutor("VMWare sessions heartbeat", 1);
+  private static final long DEFAULT_HEARTBEAT_INTERVAL = 5 * 60;
+  private static final long LOGIN_RETRY_DELAY = 30 * 1000;
+
+  private final URL myInstanceURL;
+  private final String myUsername;
+  private final String myPassword;
+  private final boolean myKeepAlive;
+  private final AtomicReference<ServiceInstance> myServiceInstance = new AtomicReference<>();
+  private ScheduledFuture<?> myHeartbeat;
+  private volatile boolean myDisposed;
+  private volatile long myLoginFailedAt;
+
+  /**
+   * @param keepAlive whether to send the heartbeats. Short-living sessions are better left to expire on the vCenter side
+   */
+  public VmwareSessionKeeper(@NotNull final URL instanceURL,
+                             @NotNull final String username,
+                             @NotNull final String password,
+                             final boolean keepAlive) {
+    myInstanceURL = instanceURL;
+    myUsername = username;
+    myPassword = password;
+    myKeepAlive = keepAlive;
+  }
+
+  @NotNull
+  public ServiceInstance getServiceInstance() throws VmwareCheckedCloudException {
+    final ServiceInstance serviceInstance = myServiceInstance.get();
+    return serviceInstance != null ? serviceInstance : login();
+  }
+
+  /**
+   * @return current session or null, if there is none. Doesn't log in
+   */
+  @Nullable
+  public ServiceInstance getCurrentServiceInstance() {
+    return myServiceInstance.get();
+  }
+
+  /**
+   * @return false if the latest login attempt has failed recently
+   */
+  public boolean isHealthy(){
+    return myServiceInstance.get() != null || System.currentTimeMillis() - myLoginFailedAt > LOGIN_RETRY_DELAY;
+  }
+
+  /**
+   * Drops the session if the exception means it has expired
+   */
+  public void processException(@NotNull final ServiceInstance serviceInstance, @NotNull final Throwable th){
+    if (isNotAuthenticated(th) && myServiceInstance.compareAndSet(serviceInstance, null)) {
+      LOG.info("Session to " + myInstanceURL + " is no longer authenticated. Will log in again on the next call");
+      final ServerConnection serverConnection = serviceInstance.getServerConnection();
+      if (serverConnection != null)
+        VmwareTasksMonitor.dispose(serverConnection);
+    }
+  }
+
+  public void dispose(){
+    myDisposed = true;
+    synchronized (this) {
+      if (myHeartbeat != null) {
+        myHeartbeat.cancel(false);
+        myHeartbeat = null;
+      }
+    }
+    logout(myServiceInstance.getAndSet(null));
+  }
+
+  @NotNull
+  private synchronized ServiceInstance login() throws VmwareCheckedCloudException {
+    ServiceInstance serviceInstance = myServiceInstance.get();
+    if (serviceInstance != null) {
+      return serviceInstance;
+    }
+    try {
+      serviceInstance = new ServiceInstance(myInstanceURL, myUsername, myPassword, true, 10*1000, 30*1000);
+    } catch (MalformedURLException e) {
+      myLoginFailedAt = System.currentTimeMillis();
+      throw new VmwareCheckedCloudException("Invalid server URL", e);
+    } catch (RemoteException e) {
+      myLoginFailedAt = System.currentTimeMillis();
+      throw new VmwareCheckedCloudException(e);
+    }
+    myLoginFailedAt = 0;
+    myServiceInstance.set(serviceInstance);
+    if (myKeepAlive && myHeartbeat == null && !myDisposed) {
+      final long interval = TeamCityProperties.getLong(VmwareConstants.SESSION_HEARTBEAT_INTERVAL, DEFAULT_HEARTBEAT_INTERVAL);
+      myHeartbeat = HEARTBEAT_EXECUTOR.scheduleWithFixedDelay(this::heartbeat, interval, interval, TimeUnit.SECONDS);
+    }
+    return serviceInstance;
+  }
+
+  private void heartbeat(){
+    final ServiceInstance serviceInstance = myServiceInstance.get();
+    if (serviceInstance == null || myDisposed)
+      return;
+    try {
+      serviceInstance.currentTime();
+    } catch (Exception ex) {
+      if (isNotAuthenticated(ex)) {
+        processException(serviceInstance, ex);
+      } else {
+        // the session might still be valid, the next regular call will tell
+        LOG.debug("Heartbeat to " + myInstanceURL + " failed: " + ex.toString());
+      }
+    }
+  }
+
+  private static boolean isNotAuthenticated(@Nullable final Throwable th){
+    Throwable cause = th;
+    while (cause != null) {
+      if (cause instanceof NotAuthenticated)
+        return true;
+      cause = cause.getCause() == cause ? null : cause.getCause();
+    }
+    return false;
+  }
+
+  private static void logout(@Nullable final ServiceInstance serviceInstance){
+    try {
+      if (serviceInstance != null) {
+        final ServerConnection serverConnection = serviceInstance.getServerConnection();
+        if (serverConnection != null) {
+          VmwareTasksMonitor.dispose(serverConnection);
+          serverConnection.logout();
+        }
+      }
+    } catch (Exception ex){}
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ *
+ *  * Copyright 2000-2017 JetBrains s.r.o.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package jetbrains.buildServer.clouds.vmware.connector;
+
+import com.vmware.vim25.mo.ServerConnection;
+import com.vmware.vim25.mo.ServiceInstance;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.clouds.vmware.errors.VmwareCheckedCloudException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A fixed set of vCenter sessions of the same user.
+ * <br/>
+ * Calls are spread over the sessions in turn, the sessions which failed to log in recently are skipped.
+ * Managed objects remember the session they were created with, so the calls made on them stay on that session
+ * and their failures are charged to that session.
+ */
+public class VmwareSessionPool {
+  private final List<VmwareSessionKeeper> mySessions;
+  private final AtomicInteger myCounter = new AtomicInteger();
+  // the session most recently handed out to the thread, the failures of the calls not bound to a managed object are attributed to it
+  private final ThreadLocal<VmwareSessionKeeper> myLastUsed = new ThreadLocal<>();
+
+  public VmwareSessionPool(@NotNull final URL instanceURL,
+                           @NotNull final String username,
+                           @NotNull final String password,
+                           final int size,
+                           final boolean keepAlive) {
+    mySessions = new ArrayList<>();
+    for (int i = 0; i < Math.max(1, size); i++) {
+      mySessions.add(new VmwareSessionKeeper(instanceURL, username, password, keepAlive));
+    }
+  }
+
+  /**
+   * @return session of the next healthy keeper
+   */
+  @NotNull
+  public ServiceInstance getServiceInstance() throws VmwareCheckedCloudException {
+    final VmwareSessionKeeper keeper = nextSession();
+    myLastUsed.set(keeper);
+    return keeper.getServiceInstance();
+  }
+
+  /**
+   * @return the first session of the pool. It is used by the long-living server-side objects, like property collectors
+   */
+  @NotNull
+  public VmwareSessionKeeper getPrimary(){
+    return mySessions.get(0);
+  }
+
+  public int getSize(){
+    return mySessions.size();
+  }
+
+  /**
+   * Drops the session of the failed call if the exception means it has expired
+   * @param serverConnection connection the call was made with. If it's unknown, the session most recently used by the current thread is assumed
+   */
+  public void processException(@Nullable final ServerConnection serverConnection, @NotNull final Throwable th){
+    if (serverConnection == null) {
+      final VmwareSessionKeeper keeper = myLastUsed.get();
+      final ServiceInstance serviceInstance = keeper == null ? null : keeper.getCurrentServiceInstance();
+      if (serviceInstance != null) {
+        keeper.processException(serviceInstance, th);
+      }
+      return;
+    }
+    for (VmwareSessionKeeper keeper : mySessions) {
+      final ServiceInstance serviceInstance = keeper.getCurrentServiceInstance();
+      if (serviceInstance != null && serviceInstance.getServerConnection() == serverConnection) {
+        keeper.processException(serviceInstance, th);
+        return;
+      }
+    }
+    // the session has been dropped already
+  }
+
+  public void dispose(){
+    mySessions.forEach(VmwareSessionKeeper::dispose);
+  }
+
+  @NotNull
+  private VmwareSessionKeeper nextSession(){
+    final int size = mySessions.size();
+    if (size == 1)
+      return mySessions.get(0);
+    final int start = Math.floorMod(myCounter.getAndIncrement(), size);
+    for (int i = 0; i < size; i++) {
+      final VmwareSessionKeeper keeper = mySessions.get((start + i) % size);
+      if (keeper.isHealthy())
+        return keeper;
+    }
+    // all of them are failing, let the caller get the error
+    return mySessions.get(start);
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ *
+ *  * Copyright 2000-2017 JetBrains s.r.o.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package jetbrains.buildServer.clouds.vmware.connector;
+
+import com.vmware.vim25.VirtualMachineSnapshotInfo;
+import com.vmware.vim25.VirtualMachineSnapshotTree;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Snapshots of the source VMs by name and the latest snapshots matching the image masks.
+ * <br/>
+ * An index is kept while the snapshot tree of the VM stays the same: taking, removing or renaming a snapshot rebuilds it.
+ */
+public class VmwareSnapshotIndex {
+  // the masks come from the image settings, so there are only a few of them
+  private static final Map<String, Pattern> MASK_PATTERNS = new ConcurrentHashMap<>();
+
+  // VM MOR -> index
+  private final Map<String, VmSnapshots> myIndex = new ConcurrentHashMap<>();
+
+  /**
+   * @return unmodifiable map of the VM snapshots by name
+   */
+  @NotNull
+  public Map<String, VirtualMachineSnapshotTree> getSnapshots(@NotNull final String vmId, @Nullable final VirtualMachineSnapshotInfo snapshotInfo){
+    return getVmSnapshots(vmId, snapshotInfo).mySnapshots;
+  }
+
+  /**
+   * @return name of the latest snapshot matching the mask or null if there is no such snapshot
+   */
+  @Nullable
+  public String getLatestSnapshot(@NotNull final String vmId, @Nullable final VirtualMachineSnapshotInfo snapshotInfo, @Nullable final String snapshotNameMask){
+    if (snapshotNameMask == null)
+      return null;
+    final VmSnapshots vmSnapshots = getVmSnapshots(vmId, snapshotInfo);
+    if (!snapshotNameMask.contains("*") && !snapshotNameMask.contains("?")) {
+      return vmSnapshots.mySnapshots.containsKey(snapshotNameMask) ? snapshotNameMask : null;
+    }
+    return vmSnapshots.myLatestByMask.computeIfAbsent(snapshotNameMask, mask -> Optional.ofNullable(findLatest(vmSnapshots.mySnapshots, mask)))
+                                     .orElse(null);
+  }
+
+  public void invalidate(@NotNull final String vmId){
+    myIndex.remove(vmId);
+  }
+
+  @NotNull
+  private VmSnapshots getVmSnapshots(@NotNull final String vmId, @Nullable final VirtualMachineSnapshotInfo snapshotInfo){
+    final VirtualMachineSnapshotTree[] rootSnapshotList = snapshotInfo == null ? null : snapshotInfo.getRootSnapshotList();
+    final long fingerprint = fingerprint(rootSnapshotList);
+    final VmSnapshots cached = myIndex.get(vmId);
+    if (cached != null && cached.myFingerprint == fingerprint)
+      return cached;
+    final Map<String, VirtualMachineSnapshotTree> snapshots = new HashMap<>();
+    collectSnapshots(rootSnapshotList, snapshots);
+    final VmSnapshots vmSnapshots = new VmSnapshots(fingerprint, Collections.unmodifiableMap(snapshots));
+    myIndex.put(vmId, vmSnapshots);
+    return vmSnapshots;
+  }
+
+  @Nullable
+  private static String findLatest(@NotNull final Map<String, VirtualMachineSnapshotTree> snapshots, @NotNull final String snapshotNameMask){
+    final Pattern pattern = MASK_PATTERNS.computeIfAbsent(snapshotNameMask, mask -> Pattern.compile(StringUtil.convertWildcardToRegexp(mask)));
+    Date latestTime = new Date(0);
+    String latestSnapshotName = null;
+    for (Map.Entry<String, VirtualMachineSnapshotTree> entry : snapshots.entrySet()) {
+      if (pattern.matcher(entry.getKey()).matches()) {
+        final Date snapshotTime = entry.getValue().getCreateTime().getTime();
+        if (latestTime.before(snapshotTime)) {
+          latestTime = snapshotTime;
+          latestSnapshotName = entry.getKey();
+        }
+      }
+    }
+    return latestSnapshotName;
+  }
+
+  private static void collectSnapshots(@Nullable final VirtualMachineSnapshotTree[] trees, @NotNull final Map<String, VirtualMachineSnapshotTree> result){
+    if (trees == null)
+      return;
+    for (VirtualMachineSnapshotTree tree : trees) {
+      result.put(tree.getName(), tree);
+      collectSnapshots(tree.getChildSnapshotList(), result);
+    }
+  }
+
+  // walks the tree without copying it
+  private static long fingerprint(@Nullable final VirtualMachineSnapshotTree[] trees){
+    if (trees == null)
+      return 0;
+    long result = trees.length;
+    for (VirtualMachineSnapshotTree tree : trees) {
+      result = 31 * result + Objects.hashCode(tree.getName());
+      result = 31 * result + (tree.getSnapshot() == null ? 0 : Objects.hashCode(tree.getSnapshot().getVal()));
+      result = 31 * result + (tree.getCreateTime() == null ? 0 : tree.getCreateTime().getTimeInMillis());
+      result = 31 * result + fingerprint(tree.getChildSnapshotList());
+    }
+    return result;
+  }
+
+  private static class VmSnapshots {
+    private final long myFingerprint;
+    private final Map<String, VirtualMachineSnapshotTree> mySnapshots;
+    private final Map<String, Optional<String>> myLatestByMask = new ConcurrentHashMap<>();
+
+    private VmSnapshots(final long fingerprint, @NotNull final Map<String, VirtualMachineSnapshotTree> snapshots) {
+      myFingerprint = fingerprint;
+      mySnapshots = snapshots;
+    }
+  }
+}
@@ -85,6 +85,8 @@ public class VmwareTaskWrapper implements AsyncCloudTask {
     return new Future<CloudTaskResult>() {
       private final AtomicInteger failureCount = new AtomicInteger(0);
       private CloudTaskResult myErrorResult = null;
+      // completed state reported by the tasks monitor, no need to query the task again
+      private volatile VmwareTasksMonitor.TaskState myCompletedState = null;
 
       public boolean cancel(final boolean mayInterruptIfRunning) {
         try {
@@ -102,6 +104,18 @@ public class VmwareTaskWrapper implements AsyncCloudTask {
       }
 
       public boolean isDone() {
+        if (myCompletedState != null)
+          return true;
+        final VmwareTasksMonitor monitor = VmwareTasksMonitor.getInstance(task);
+        if (monitor != null) {
+          final VmwareTasksMonitor.TaskState state = monitor.getState(task);
+          if (state != null) {
+            if (state.isDone()) {
+              myCompletedState = state;
+            }
+            return state.isDone();
+          }
+        }
         try {
           final TaskInfo taskInfo = task.getTaskInfo();
           return (taskInfo.getState() == TaskInfoState.success || taskInfo.getState() == TaskInfoState.error);
@@ -121,6 +135,15 @@ public class VmwareTaskWrapper implements AsyncCloudTask {
         if (myErrorResult!= null){
           return myErrorResult;
         }
+        final VmwareTasksMonitor.TaskState completedState = myCompletedState;
+        if (completedState != null){
+          if (completedState.getState() == TaskInfoState.error){
+            final LocalizedMethodFault error = completedState.getError();
+            return new CloudTaskResult(true, String.valueOf(completedState.getState()), new Exception(error== null ? "Unknown error" : error.getLocalizedMessage()));
+          } else {
+            return new CloudTaskResult(String.valueOf(completedState.getState()));
+          }
+        }
         try {
           final String result = task.waitForTask();
           TaskInfo taskInfo = task.getTaskInfo();
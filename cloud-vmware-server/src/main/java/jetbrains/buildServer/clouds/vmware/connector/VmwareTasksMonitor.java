@@ -0,0 +1,254 @@
+/*
+ *
+ *  * Copyright 2000-2017 JetBrains s.r.o.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package jetbrains.buildServer.clouds.vmware.connector;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.vmware.vim25.*;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.PropertyFilter;
+import com.vmware.vim25.mo.ServerConnection;
+import com.vmware.vim25.mo.Task;
+import java.rmi.RemoteException;
+import java.util.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Tracks the state of the running tasks of a session with a single property collector.
+ * <br/>
+ * Every task gets a filter on <code>info.state</code> and <code>info.error</code>, all the filters are served by one
+ * <code>WaitForUpdatesEx</code> call, so the cost of a check doesn't depend on the number of tasks in flight.
+ */
+public class VmwareTasksMonitor {
+  private static final Logger LOG = Logger.getInstance(VmwareTasksMonitor.class.getName());
+  private static final String[] TASK_PROPERTIES = {"info.state", "info.error"};
+  // the checks are done for every task in a row, one vCenter call is enough for all of them
+  private static final long MIN_SYNC_INTERVAL = 200;
+  // the task is not checked anymore, e.g. its caller has given up on it
+  private static final long ABANDONED_TASK_TIMEOUT = 10 * 60 * 1000;
+
+  // a property collector belongs to a session, the monitor is removed by the session keeper when the session is dropped
+  private static final Map<ServerConnection, VmwareTasksMonitor> MONITORS = new HashMap<>();
+  // the tasks of the dropped sessions are still checked by their callers, the monitors shouldn't be created again for them
+  private static final Set<ServerConnection> DISPOSED = Collections.newSetFromMap(new WeakHashMap<>());
+
+  private final ServerConnection myServerConnection;
+  private final Map<String, TaskState> myTasks = new HashMap<>();
+  // filter MOR -> task MOR
+  private final Map<String, String> myFilterTasks = new HashMap<>();
+  private PropertyCollector myCollector;
+  private String myVersion = "";
+  private long myLastSync;
+  private boolean myDisposed;
+
+  private VmwareTasksMonitor(@NotNull final ServerConnection serverConnection) {
+    myServerConnection = serverConnection;
+  }
+
+  /**
+   * @return monitor of the session the task belongs to or null if the task is not a real vCenter task
+   */
+  @Nullable
+  public static VmwareTasksMonitor getInstance(@NotNull final Task task){
+    final ServerConnection serverConnection = task.getServerConnection();
+    if (serverConnection == null || task.getMOR() == null || serverConnection.getServiceInstance() == null)
+      return null;
+    synchronized (MONITORS) {
+      if (DISPOSED.contains(serverConnection))
+        return null;
+      return MONITORS.computeIfAbsent(serverConnection, VmwareTasksMonitor::new);
+    }
+  }
+
+  /**
+   * Destroys the property collector of the session and forgets the monitor. Is called before the session is logged out or dropped
+   */
+  public static void dispose(@NotNull final ServerConnection serverConnection){
+    final VmwareTasksMonitor monitor;
+    synchronized (MONITORS) {
+      monitor = MONITORS.remove(serverConnection);
+      DISPOSED.add(serverConnection);
+    }
+    if (monitor != null) {
+      synchronized (monitor) {
+        monitor.myDisposed = true;
+        monitor.reset();
+      }
+    }
+  }
+
+  /**
+   * @return the latest known state of the task or null if the task can't be watched and should be checked directly
+   */
+  @Nullable
+  public synchronized TaskState getState(@NotNull final Task task){
+    if (myDisposed)
+      return null;
+    try {
+      final String taskId = task.getMOR().getVal();
+      TaskState state = myTasks.get(taskId);
+      if (state == null) {
+        watch(task);
+        state = myTasks.get(taskId);
+      }
+      state.myLastAccess = System.currentTimeMillis();
+      if (!state.isDone()) {
+        sync();
+      }
+      if (state.isDone()) {
+        forget(state);
+      }
+      forgetAbandoned(System.currentTimeMillis() - ABANDONED_TASK_TIMEOUT);
+      return state;
+    } catch (Exception ex) {
+      LOG.debug("Unable to watch " + task.getMOR().getVal() + ": " + ex.toString());
+      reset();
+      return null;
+    }
+  }
+
+  private void watch(@NotNull final Task task) throws RemoteException {
+    if (myCollector == null) {
+      myCollector = myServerConnection.getServiceInstance().getPropertyCollector().createPropertyCollector();
+      myVersion = "";
+    }
+    final PropertySpec propertySpec = new PropertySpec();
+    propertySpec.setType(Task.class.getSimpleName());
+    propertySpec.setPathSet(TASK_PROPERTIES);
+    final ObjectSpec objectSpec = new ObjectSpec();
+    objectSpec.setObj(task.getMOR());
+    objectSpec.setSkip(false);
+    final PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+    filterSpec.setPropSet(new PropertySpec[]{propertySpec});
+    filterSpec.setObjectSet(new ObjectSpec[]{objectSpec});
+
+    final PropertyFilter filter = myCollector.createFilter(filterSpec, true);
+    final TaskState state = new TaskState(task.getMOR().getVal(), filter);
+    myTasks.put(state.myTaskId, state);
+    myFilterTasks.put(filter.getMOR().getVal(), state.myTaskId);
+    // the initial values of the new filter come with the next update
+    myLastSync = 0;
+  }
+
+  private void sync() throws RemoteException {
+    if (System.currentTimeMillis() - myLastSync < MIN_SYNC_INTERVAL)
+      return;
+    final WaitOptions options = new WaitOptions();
+    options.setMaxWaitSeconds(0);
+    while (true) {
+      final UpdateSet updateSet = myCollector.waitForUpdatesEx(myVersion, options);
+      myLastSync = System.currentTimeMillis();
+      if (updateSet == null)
+        return;
+      myVersion = updateSet.getVersion();
+      if (updateSet.getFilterSet() != null) {
+        for (PropertyFilterUpdate filterUpdate : updateSet.getFilterSet()) {
+          final TaskState state = myTasks.get(myFilterTasks.get(filterUpdate.getFilter().getVal()));
+          if (state != null && filterUpdate.getObjectSet() != null) {
+            for (ObjectUpdate objectUpdate : filterUpdate.getObjectSet()) {
+              state.apply(objectUpdate.getChangeSet());
+            }
+          }
+        }
+      }
+      if (!Boolean.TRUE.equals(updateSet.getTruncated()))
+        return;
+    }
+  }
+
+  private void forget(@NotNull final TaskState state){
+    myTasks.remove(state.myTaskId);
+    myFilterTasks.remove(state.myFilter.getMOR().getVal());
+    try {
+      state.myFilter.destroyPropertyFilter();
+    } catch (Exception ex) {
+      LOG.debug("Unable to destroy the filter of " + state.myTaskId + ": " + ex.toString());
+    }
+  }
+
+  /**
+   * Destroys the filters of the tasks which were not checked since the given time
+   */
+  synchronized void forgetAbandoned(final long accessedBefore){
+    for (TaskState state : new ArrayList<>(myTasks.values())) {
+      if (state.myLastAccess < accessedBefore) {
+        LOG.debug("Task " + state.myTaskId + " is not checked anymore, won't watch it");
+        forget(state);
+      }
+    }
+  }
+
+  synchronized int getWatchedTasksCount(){
+    return myTasks.size();
+  }
+
+  private void reset(){
+    if (myCollector != null) {
+      try {
+        myCollector.destroyPropertyCollector();
+      } catch (Exception ex) {
+        LOG.debug("Unable to destroy property collector: " + ex.toString());
+      }
+    }
+    myCollector = null;
+    myVersion = "";
+    // the filters are destroyed along with the collector
+    myTasks.clear();
+    myFilterTasks.clear();
+  }
+
+  public static class TaskState {
+    private final String myTaskId;
+    private final PropertyFilter myFilter;
+    private volatile TaskInfoState myState;
+    private volatile LocalizedMethodFault myError;
+    private long myLastAccess;
+
+    private TaskState(@NotNull final String taskId, @NotNull final PropertyFilter filter) {
+      myTaskId = taskId;
+      myFilter = filter;
+    }
+
+    public boolean isDone(){
+      return myState == TaskInfoState.success || myState == TaskInfoState.error;
+    }
+
+    @Nullable
+    public TaskInfoState getState() {
+      return myState;
+    }
+
+    @Nullable
+    public LocalizedMethodFault getError() {
+      return myError;
+    }
+
+    private void apply(@Nullable final PropertyChange[] changeSet){
+      if (changeSet == null)
+        return;
+      for (PropertyChange change : changeSet) {
+        if ("info.state".equals(change.getName())) {
+          myState = (TaskInfoState)change.getVal();
+        } else if ("info.error".equals(change.getName())) {
+          myError = (LocalizedMethodFault)change.getVal();
+        }
+      }
+    }
+  }
+}
@@ -18,13 +18,21 @@
 
 package jetbrains.buildServer.clouds.vmware.connector;
 
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
 import com.vmware.vim25.mo.Datacenter;
 import com.vmware.vim25.mo.Folder;
 import com.vmware.vim25.mo.ManagedEntity;
 import com.vmware.vim25.mo.ResourcePool;
+import com.vmware.vim25.mo.util.PropertyCollectorUtil;
+import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
 import jetbrains.buildServer.clouds.vmware.connector.beans.FolderBean;
 import jetbrains.buildServer.clouds.vmware.connector.beans.ResourcePoolBean;
 import org.jetbrains.annotations.NotNull;
@@ -40,6 +48,7 @@ public class VmwareUtils {
   private static final String RESPOOL_TYPE = ResourcePool.class.getSimpleName();
   private static final String SPEC_FOLDER = "vm";
   private static final String SPEC_RESPOOL = "Resources";
+  private static final Pattern VM_FOLDER_PATTERN = Pattern.compile("group-v\\d+");
 
   static boolean isSpecial(@NotNull final ResourcePoolBean pool){
     return SPEC_RESPOOL.equals(pool.getName()) && pool.getParentMOR() != null && !RESPOOL_TYPE.equals(pool.getParentMOR().getType());
@@ -49,4 +58,75 @@ public class VmwareUtils {
     return SPEC_FOLDER.equals(folder.getName()) && folder.getParentMOR() != null && !FOLDER_TYPE.equals(folder.getParentMOR().getType());
   }
 
+  /**
+   * @return true if the entity name shouldn't be a part of the inventory path:
+   * the entity is the special "vm" folder, a folder that is not a VM folder or the special "Resources" pool
+   */
+  static boolean isSkippedInPath(@NotNull final ManagedObjectReference mor, @NotNull final String entityName){
+    return (FOLDER_TYPE.equals(mor.getType()) && (SPEC_FOLDER.equals(entityName) || !VM_FOLDER_PATTERN.matcher(mor.getVal()).matches())) ||
+           (RESPOOL_TYPE.equals(mor.getType()) && SPEC_RESPOOL.equals(entityName));
+  }
+
+  /**
+   * Creates the same filter spec as {@link com.vmware.vim25.mo.InventoryNavigator#retrieveObjectContents(String[][], boolean)} does:
+   * the whole inventory tree below the root entity is traversed
+   */
+  @NotNull
+  static PropertyFilterSpec createFilterSpec(@NotNull final ManagedObjectReference root, @NotNull final String[][] typeinfo){
+    final ObjectSpec objectSpec = new ObjectSpec();
+    objectSpec.setObj(root);
+    objectSpec.setSkip(Boolean.FALSE);
+    objectSpec.setSelectSet(PropertyCollectorUtil.buildFullTraversalV4());
+
+    final PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+    filterSpec.setObjectSet(new ObjectSpec[]{objectSpec});
+    filterSpec.setPropSet(PropertyCollectorUtil.buildPropertySpecArray(typeinfo));
+    return filterSpec;
+  }
+
+  /**
+   * Creates a filter spec that traverses only the given folders and resource pools (including nested ones).
+   * Objects which are neither folders nor resource pools (i.e. VMs) are collected as is.
+   */
+  @NotNull
+  static PropertyFilterSpec createScopedFilterSpec(@NotNull final Collection<ManagedObjectReference> roots, @NotNull final String[][] typeinfo){
+    final TraversalSpec folderTraversal = createTraversalSpec("scopedFolderTraversal", FOLDER_TYPE, "childEntity",
+                                                              "scopedFolderTraversal", "scopedPoolVmsTraversal", "scopedPoolTraversal");
+    final TraversalSpec poolVmsTraversal = createTraversalSpec("scopedPoolVmsTraversal", RESPOOL_TYPE, "vm");
+    final TraversalSpec poolTraversal = createTraversalSpec("scopedPoolTraversal", RESPOOL_TYPE, "resourcePool",
+                                                            "scopedPoolVmsTraversal", "scopedPoolTraversal");
+    final SelectionSpec[] selectSet = {folderTraversal, poolVmsTraversal, poolTraversal};
+
+    final ObjectSpec[] objectSpecs = roots.stream().map(root -> {
+      final ObjectSpec objectSpec = new ObjectSpec();
+      objectSpec.setObj(root);
+      objectSpec.setSkip(Boolean.FALSE);
+      objectSpec.setSelectSet(selectSet);
+      return objectSpec;
+    }).toArray(ObjectSpec[]::new);
+
+    final PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+    filterSpec.setObjectSet(objectSpecs);
+    filterSpec.setPropSet(PropertyCollectorUtil.buildPropertySpecArray(typeinfo));
+    return filterSpec;
+  }
+
+  @NotNull
+  private static TraversalSpec createTraversalSpec(@NotNull final String name,
+                                                   @NotNull final String type,
+                                                   @NotNull final String path,
+                                                   @NotNull final String... nextSpecs){
+    final TraversalSpec spec = new TraversalSpec();
+    spec.setName(name);
+    spec.setType(type);
+    spec.setPath(path);
+    spec.setSkip(Boolean.FALSE);
+    final SelectionSpec[] selectSet = new SelectionSpec[nextSpecs.length];
+    for (int i = 0; i < nextSpecs.length; i++) {
+      selectSet[i] = new SelectionSpec();
+      selectSet[i].setName(nextSpecs[i]);
+    }
+    spec.setSelectSet(selectSet);
+    return spec;
+  }
 }
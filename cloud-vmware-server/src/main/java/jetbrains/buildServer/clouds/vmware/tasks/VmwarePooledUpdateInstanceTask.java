@@ -76,6 +76,11 @@ public class VmwarePooledUpdateInstanceTask
     }
   }
 
+  @Override
+  protected void instancesUpdated() {
+    myClients.forEach(VMWareCloudClient::saveInventorySnapshot);
+  }
+
   @NotNull
   @Override
   protected Collection<VmwareCloudImage> getImages() {
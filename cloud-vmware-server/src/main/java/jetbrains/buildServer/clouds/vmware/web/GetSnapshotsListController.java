@@ -47,6 +47,7 @@ import org.springframework.web.servlet.ModelAndView;
 public class GetSnapshotsListController extends BaseFormXmlController {
 
   private static final Logger LOG = Logger.getInstance(GetSnapshotsListController.class.getName());
+  private final InFlightRequests<Map<String, VirtualMachineSnapshotTree>> mySnapshotRequests = new InFlightRequests<>();
 
   public GetSnapshotsListController() {
 
@@ -69,7 +70,8 @@ public class GetSnapshotsListController extends BaseFormXmlController {
     final String imageName = props.get("image");
     try {
       final VMWareApiConnector myApiConnector = VmwareApiConnectorsPool.getOrCreateConnector(new URL(serverUrl), username, password, null, null, null);
-      final Map<String, VirtualMachineSnapshotTree> snapshotList = myApiConnector.getSnapshotList(imageName);
+      final Map<String, VirtualMachineSnapshotTree> snapshotList =
+        mySnapshotRequests.execute(myApiConnector.getKey() + "|" + imageName, () -> myApiConnector.getSnapshotList(imageName));
       Element snapshots = new Element("Snapshots");
       snapshots.setAttribute("vmName", imageName);
       final Element currentVersion = new Element("Snapshot");
@@ -95,6 +97,8 @@ public class GetSnapshotsListController extends BaseFormXmlController {
       LOG.debug("Unable to get snapshot list: " + e.toString(), e);
     } catch (MalformedURLException e) {
       LOG.warn("Unable to get snapshot list: " + e.toString());
+    } catch (Exception e) {
+      LOG.warnAndDebugDetails("Unable to get snapshot list: " + e.toString(), e);
     }
 
   }
@@ -0,0 +1,53 @@
+/*
+ *
+ *  * Copyright 2000-2017 JetBrains s.r.o.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package jetbrains.buildServer.clouds.vmware.web;
+
+import java.util.concurrent.*;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Coalesces identical concurrent requests: the callers coming while a request with the same key is in progress get its result.
+ * Results are not kept after the request is completed.
+ */
+class InFlightRequests<T> {
+  private final ConcurrentMap<String, CompletableFuture<T>> myRequests = new ConcurrentHashMap<>();
+
+  T execute(@NotNull final String key, @NotNull final Callable<T> request) throws Exception {
+    final CompletableFuture<T> future = new CompletableFuture<>();
+    final CompletableFuture<T> inFlight = myRequests.putIfAbsent(key, future);
+    if (inFlight != null) {
+      try {
+        return inFlight.get();
+      } catch (ExecutionException e) {
+        final Throwable cause = e.getCause();
+        throw cause instanceof Exception ? (Exception)cause : e;
+      }
+    }
+    try {
+      final T result = request.call();
+      future.complete(result);
+      return result;
+    } catch (Throwable th) {
+      future.completeExceptionally(th);
+      throw th;
+    } finally {
+      myRequests.remove(key, future);
+    }
+  }
+}
@@ -57,6 +57,8 @@ public class VMWareEditProfileController extends BaseFormXmlController {
   @NotNull private final String myConfigHelperPath;
   @NotNull private final PluginDescriptor myPluginDescriptor;
   @NotNull private final AgentPoolManager myAgentPoolManager;
+  // two admins opening the same profile share a single fetch
+  private final InFlightRequests<VCenterDetails> myFetches = new InFlightRequests<>();
 
   public VMWareEditProfileController(@NotNull final SBuildServer server,
                                      @NotNull final PluginDescriptor pluginDescriptor,
@@ -107,11 +109,17 @@ public class VMWareEditProfileController extends BaseFormXmlController {
 
     try {
       final VMWareApiConnector myApiConnector = VmwareApiConnectorsPool.getOrCreateConnector(new URL(serverUrl), username, password, null, null, null);
-      myApiConnector.test();
-      xmlResponse.addContent(getVirtualMachinesAsElement(myApiConnector.getVirtualMachines(true)));
-      xmlResponse.addContent(getFoldersAsElement(myApiConnector.getFolders()));
-      xmlResponse.addContent(getResourcePoolsAsElement(myApiConnector.getResourcePools()));
-      xmlResponse.addContent(getCustomizationSpecsAsElement(myApiConnector.getCustomizationSpecs()));
+      final VCenterDetails details = myFetches.execute(myApiConnector.getKey(), () -> {
+        myApiConnector.test();
+        return new VCenterDetails(myApiConnector.getVirtualMachines(true),
+                                  myApiConnector.getFolders(),
+                                  myApiConnector.getResourcePools(),
+                                  myApiConnector.getCustomizationSpecs());
+      });
+      xmlResponse.addContent(getVirtualMachinesAsElement(details.myInstances));
+      xmlResponse.addContent(getFoldersAsElement(details.myFolders));
+      xmlResponse.addContent(getResourcePoolsAsElement(details.myResourcePools));
+      xmlResponse.addContent(getCustomizationSpecsAsElement(details.myCustomizationSpecs));
     } catch (Exception ex) {
       LOG.warnAndDebugDetails("Unable to get vCenter details: " + ex.toString(), ex);
       errors.addError(
@@ -184,4 +192,21 @@ public class VMWareEditProfileController extends BaseFormXmlController {
     });
     return sortedList;
   }
+
+  private static class VCenterDetails {
+    private final List<VmwareInstance> myInstances;
+    private final List<FolderBean> myFolders;
+    private final List<ResourcePoolBean> myResourcePools;
+    private final Map<String, String> myCustomizationSpecs;
+
+    private VCenterDetails(@NotNull final List<VmwareInstance> instances,
+                           @NotNull final List<FolderBean> folders,
+                           @NotNull final List<ResourcePoolBean> resourcePools,
+                           @NotNull final Map<String, String> customizationSpecs) {
+      myInstances = instances;
+      myFolders = folders;
+      myResourcePools = resourcePools;
+      myCustomizationSpecs = customizationSpecs;
+    }
+  }
 }
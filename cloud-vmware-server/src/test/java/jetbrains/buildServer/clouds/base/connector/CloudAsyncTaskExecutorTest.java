@@ -44,6 +44,54 @@ public class CloudAsyncTaskExecutorTest extends BaseTestCase {
     assertTrue(latch.await(2, TimeUnit.SECONDS));
   }
 
+  public void blocking_operations_should_not_delay_scheduled_tasks() throws InterruptedException {
+    myCloudAsyncTaskExecutor.dispose();
+    myCloudAsyncTaskExecutor = new CloudAsyncTaskExecutor("Test executor", 1, 1);
+    final CountDownLatch releaseLatch = new CountDownLatch(1);
+    final CountDownLatch scheduledLatch = new CountDownLatch(1);
+    for (int i = 0; i < 3; i++) {
+      myCloudAsyncTaskExecutor.submit("blocking " + i, () -> {
+        try {
+          releaseLatch.await();
+        } catch (InterruptedException e) {
+          // finish
+        }
+      });
+    }
+    myCloudAsyncTaskExecutor.scheduleWithFixedDelay("scheduled", scheduledLatch::countDown, 0, 100, TimeUnit.MILLISECONDS);
+    assertTrue(scheduledLatch.await(2, TimeUnit.SECONDS));
+
+    new WaitFor(1000){
+      @Override
+      protected boolean condition() {
+        return myCloudAsyncTaskExecutor.getActiveCount() == 1;
+      }
+    };
+    assertEquals(1, myCloudAsyncTaskExecutor.getActiveCount());
+    assertEquals(2, myCloudAsyncTaskExecutor.getQueueSize());
+
+    releaseLatch.countDown();
+    new WaitFor(1000){
+      @Override
+      protected boolean condition() {
+        return myCloudAsyncTaskExecutor.getQueueSize() == 0 && myCloudAsyncTaskExecutor.getActiveCount() == 0;
+      }
+    };
+    assertEquals(0, myCloudAsyncTaskExecutor.getQueueSize());
+    assertEquals(0, myCloudAsyncTaskExecutor.getActiveCount());
+  }
+
+  public void should_run_blocking_operations_in_virtual_threads_mode() throws InterruptedException {
+    // falls back to the platform threads on the older JVMs
+    myCloudAsyncTaskExecutor.dispose();
+    myCloudAsyncTaskExecutor = new CloudAsyncTaskExecutor("Test executor", 1, 1, true);
+    final CountDownLatch latch = new CountDownLatch(10);
+    for (int i = 0; i < 10; i++) {
+      myCloudAsyncTaskExecutor.submit("operation " + i, latch::countDown);
+    }
+    assertTrue(latch.await(2, TimeUnit.SECONDS));
+  }
+
   private static class MyAsyncCloudTask implements AsyncCloudTask {
 
     private String myName;
@@ -0,0 +1,60 @@
+package jetbrains.buildServer.clouds.vmware;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.Test;
+
+@Test
+public class VmwareCloneIndexAllocatorTest extends BaseTestCase {
+
+  public void should_continue_after_restart() throws IOException {
+    final File idxStorage = createTempDir();
+    final VmwareCloneIndexAllocator allocator = new VmwareCloneIndexAllocator(idxStorage);
+    for (int i = 1; i <= 150; i++) {
+      assertEquals(i, allocator.allocate("image1"));
+    }
+    assertEquals(1, allocator.allocate("image2"));
+
+    final VmwareCloneIndexAllocator restarted = new VmwareCloneIndexAllocator(idxStorage);
+    assertTrue(restarted.allocate("image1") > 150);
+    assertTrue(restarted.allocate("image2") > 1);
+  }
+
+  public void should_not_share_indexes_between_nodes() throws IOException {
+    final File idxStorage = createTempDir();
+    final VmwareCloneIndexAllocator node1 = new VmwareCloneIndexAllocator(idxStorage);
+    final VmwareCloneIndexAllocator node2 = new VmwareCloneIndexAllocator(idxStorage);
+    final Set<Integer> indexes = new HashSet<>();
+    for (int i = 0; i < 500; i++) {
+      assertTrue(indexes.add(node1.allocate("image")));
+      assertTrue(indexes.add(node2.allocate("image")));
+    }
+  }
+
+  public void should_migrate_idx_file() throws IOException {
+    final File idxStorage = createTempDir();
+    final File idxFile = new File(idxStorage, "image.idx");
+    FileUtil.writeFileAndReportErrors(idxFile, "42");
+    final VmwareCloneIndexAllocator allocator = new VmwareCloneIndexAllocator(idxStorage);
+    assertEquals(42, allocator.allocate("image"));
+    assertFalse(idxFile.exists());
+    assertEquals(43, allocator.allocate("image"));
+  }
+
+  public void should_skip_incomplete_entry() throws IOException {
+    final File idxStorage = createTempDir();
+    final VmwareCloneIndexAllocator allocator = new VmwareCloneIndexAllocator(idxStorage);
+    assertEquals(1, allocator.allocate("image"));
+    final File journal = new File(idxStorage, "cloneIndexes.journal");
+    FileUtil.writeFileAndReportErrors(journal, FileUtil.readText(journal) + "50");
+
+    final VmwareCloneIndexAllocator restarted = new VmwareCloneIndexAllocator(idxStorage);
+    final int idx = restarted.allocate("image");
+    assertTrue(idx > 1);
+    assertTrue(new VmwareCloneIndexAllocator(idxStorage).allocate("image") > idx);
+  }
+}
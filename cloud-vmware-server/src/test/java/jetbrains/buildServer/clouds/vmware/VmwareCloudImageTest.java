@@ -81,10 +81,8 @@ public class VmwareCloudImageTest extends BaseTestCase {
       assertEquals(String.format("%s-%d", myImageDetails.getSourceId(), i + 1), myImage.generateNewVmName());
     }
     FileUtil.delete(myIdxStorage);
-    final String newName = myImage.generateNewVmName();
-    assertTrue(newName.startsWith(myImage.getName()));
-    final int i = Integer.parseInt(newName.substring(myImage.getName().length() + 1));
-    assertTrue(i > 100000);
+    // the reserved indexes are still used
+    assertEquals(String.format("%s-%d", myImageDetails.getSourceId(), 11), myImage.generateNewVmName());
   }
 
   public void check_can_start_new_instance_limits() throws RemoteException, InterruptedException {
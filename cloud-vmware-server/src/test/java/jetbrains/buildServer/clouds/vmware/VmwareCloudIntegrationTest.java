@@ -7,6 +7,7 @@ import com.vmware.vim25.mo.Datacenter;
 import com.vmware.vim25.mo.ManagedEntity;
 import com.vmware.vim25.mo.Task;
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.rmi.RemoteException;
 import java.util.*;
@@ -21,6 +22,7 @@ import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.clouds.*;
 import jetbrains.buildServer.clouds.base.connector.AbstractInstance;
 import jetbrains.buildServer.clouds.base.errors.CheckedCloudException;
+import jetbrains.buildServer.clouds.base.errors.TypedCloudErrorInfo;
 import jetbrains.buildServer.clouds.server.CloudInstancesProvider;
 import jetbrains.buildServer.clouds.server.CloudInstancesProviderCallback;
 import jetbrains.buildServer.clouds.server.CloudInstancesProviderExtendedCallback;
@@ -40,6 +42,7 @@ import jetbrains.buildServer.clouds.vmware.web.VMWareWebConstants;
 import jetbrains.buildServer.serverSide.ServerPaths;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.serverSide.impl.ServerSettingsImpl;
+import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.TestFor;
 import jetbrains.buildServer.web.openapi.PluginDescriptor;
 import org.jetbrains.annotations.NotNull;
@@ -176,6 +179,123 @@ public class VmwareCloudIntegrationTest extends BaseTestCase {
     assertEquals("customValue1", cloudInstanceUserData.getCustomAgentConfigurationParameters().get("customParam1"));
   }
 
+  public void check_startup_parameters_with_batched_start() throws CheckedCloudException {
+    setInternalProperty(VmwareConstants.BATCHED_START_PIPELINE, "true");
+    // start/stop: reconfigured before the power on
+    startNewInstanceAndWait("image1", Collections.singletonMap("customParam1", "customValue1"));
+    final VmwareInstance vm = myFakeApi.getAllVMsMap(true).get("image1");
+    assertEquals("customValue1", CloudInstanceUserData.deserialize(vm.getProperty(VMWarePropertiesNames.USER_DATA))
+                                                      .getCustomAgentConfigurationParameters().get("customParam1"));
+    assertEquals("image1", vm.getProperty(VMWarePropertiesNames.AGENT_NAME));
+
+    // clone: the agent configuration is the part of the clone spec
+    final VmwareCloudInstance instance = startNewInstanceAndWait("image2", Collections.singletonMap("customParam2", "customValue2"));
+    final Map<String, String> vmParams = myFakeApi.getVMParams(instance.getInstanceId());
+    assertEquals("true", vmParams.get(VMWareApiConnector.TEAMCITY_VMWARE_CLONED_INSTANCE));
+    assertEquals(instance.getName(), vmParams.get(VMWarePropertiesNames.AGENT_NAME));
+    assertEquals(instance.getImageId(), vmParams.get(VMWarePropertiesNames.IMAGE_NAME));
+    assertEquals("customValue2", CloudInstanceUserData.deserialize(vmParams.get(VMWarePropertiesNames.USER_DATA))
+                                                      .getCustomAgentConfigurationParameters().get("customParam2"));
+  }
+
+  public void start_instances_from_warm_pool() throws Exception {
+    FakeModel.instance().addVM("image_warm").setParentFolder("cf");
+    FakeModel.instance().addVMSnapshot("image_warm", "snap");
+    updateClientParameters(CloudProfileUtil.collectionFromJson(
+      "[{sourceVmName:'image_warm', snapshot:'snap*',folder:'cf',pool:'rp',maxInstances:3,warmPoolSize:1,behaviour:'FRESH_CLONE'}]"));
+    recreateClient();
+
+    new WaitFor(5*1000){
+      @Override
+      protected boolean condition() {
+        return getImageByName("image_warm").getInstances().stream().anyMatch(i -> i.getStatus() == InstanceStatus.STOPPED);
+      }
+    }.assertCompleted("Warm pool should have been filled");
+    final String warmInstanceId = getImageByName("image_warm").getInstances().iterator().next().getInstanceId();
+    assertEquals("true", myFakeApi.getVMParams(warmInstanceId).get(VMWareApiConnector.TEAMCITY_VMWARE_WARM_CLONE));
+    assertEquals(VirtualMachinePowerState.poweredOff, FakeModel.instance().getVms().get(warmInstanceId).getRuntime().getPowerState());
+
+    final VmwareCloudInstance instance = startNewInstanceAndWait("image_warm");
+    assertEquals(warmInstanceId, instance.getInstanceId());
+    assertEquals("", myFakeApi.getVMParams(warmInstanceId).get(VMWareApiConnector.TEAMCITY_VMWARE_WARM_CLONE));
+
+    new WaitFor(5*1000){
+      @Override
+      protected boolean condition() {
+        return getImageByName("image_warm").getInstances().stream()
+                                           .anyMatch(i -> i.getStatus() == InstanceStatus.STOPPED && !i.getInstanceId().equals(warmInstanceId));
+      }
+    }.assertCompleted("Warm pool should have been refilled");
+  }
+
+  public void warm_pool_does_not_take_instances_limit() throws Exception {
+    FakeModel.instance().addVM("image_warm").setParentFolder("cf");
+    FakeModel.instance().addVMSnapshot("image_warm", "snap");
+    updateClientParameters(CloudProfileUtil.collectionFromJson(
+      "[{sourceVmName:'image_warm', snapshot:'snap*',folder:'cf',pool:'rp',maxInstances:2,warmPoolSize:2,behaviour:'FRESH_CLONE'}]"));
+    recreateClient();
+
+    new WaitFor(5*1000){
+      @Override
+      protected boolean condition() {
+        return getImageByName("image_warm").getInstances().stream().anyMatch(i -> i.getStatus() == InstanceStatus.STOPPED);
+      }
+    }.assertCompleted("Warm pool should have been filled");
+    Thread.sleep(500);
+    assertEquals(1, getImageByName("image_warm").getInstances().size());
+    assertTrue(getImageByName("image_warm").canStartNewInstance());
+
+    startNewInstanceAndWait("image_warm");
+    startNewInstanceAndWait("image_warm");
+    assertFalse(getImageByName("image_warm").canStartNewInstance());
+  }
+
+  public void serve_instances_from_inventory_snapshot_on_warm_start() throws Exception {
+    final VmwareCloudInstance instance = startNewInstanceAndWait("image2");
+    final File snapshotFile = new File(myIdxStorage, myProfile.getProfileId() + ".inventory");
+    new WaitFor(5*1000){
+      @Override
+      protected boolean condition() {
+        try {
+          return snapshotFile.exists() && FileUtil.readText(snapshotFile).contains(instance.getInstanceId());
+        } catch (IOException e) {
+          return false;
+        }
+      }
+    }.assertCompleted("Inventory snapshot should have been saved");
+
+    setInternalProperty(VmwareConstants.WARM_START, "true");
+    final CountDownLatch vCenterAvailable = new CountDownLatch(1);
+    myFakeApi = new FakeApiConnector(TEST_SERVER_UUID, PROFILE_ID){
+      @NotNull
+      @Override
+      public Map<VmwareCloudImage, TypedCloudErrorInfo[]> checkImages(@NotNull final Collection<VmwareCloudImage> images) {
+        try {
+          vCenterAvailable.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        return super.checkImages(images);
+      }
+    };
+    myClient = recreateClient(myClient, myClientParameters, false);
+    assertTrue(myClient.isInitialized());
+    final VmwareCloudInstance restored = getImageByName("image2").findInstanceById(instance.getInstanceId());
+    assertNotNull(restored);
+    assertEquals(InstanceStatus.RUNNING, restored.getStatus());
+    assertEquals(instance.getVmId(), restored.getVmId());
+
+    // the VM has been deleted while the server was down
+    FakeModel.instance().removeVM(instance.getInstanceId());
+    vCenterAvailable.countDown();
+    new WaitFor(5*1000){
+      @Override
+      protected boolean condition() {
+        return getImageByName("image2").findInstanceById(instance.getInstanceId()) == null;
+      }
+    }.assertCompleted("Restored instance should have been reconciled");
+  }
+
   public void check_vm_clone() throws Exception {
     startAndCheckCloneDeletedAfterTermination("image1", new Checker<VmwareCloudInstance>() {
       public void check(final VmwareCloudInstance data) throws CheckedCloudException {
@@ -0,0 +1,56 @@
+package jetbrains.buildServer.clouds.vmware;
+
+import java.io.File;
+import java.util.Calendar;
+import jetbrains.buildServer.BaseTestCase;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class VmwareDemandHistoryTest extends BaseTestCase {
+  private static final long WEEK = 7 * 24 * 60 * 60 * 1000L;
+
+  private File myFile;
+  private long myMonday9am;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myFile = new File(createTempDir(), "image.demand");
+    final Calendar calendar = Calendar.getInstance();
+    calendar.set(2017, Calendar.MAY, 15, 9, 5, 0);
+    myMonday9am = calendar.getTimeInMillis();
+  }
+
+  public void should_expect_requests_of_previous_weeks() {
+    final VmwareDemandHistory history = new VmwareDemandHistory(myFile);
+    for (int i = 0; i < 4; i++) {
+      history.recordRequest(myMonday9am + i * 60 * 1000);
+    }
+    // not for the same week
+    assertEquals(0, history.getExpectedRequests(myMonday9am + 10 * 60 * 1000));
+    // other slots
+    assertEquals(0, history.getExpectedRequests(myMonday9am + WEEK + 60 * 60 * 1000));
+    assertEquals(0, history.getExpectedRequests(myMonday9am + WEEK + 24 * 60 * 60 * 1000));
+
+    assertEquals(2, history.getExpectedRequests(myMonday9am + WEEK));
+    for (int i = 0; i < 4; i++) {
+      history.recordRequest(myMonday9am + WEEK + i * 60 * 1000);
+    }
+    assertEquals(3, history.getExpectedRequests(myMonday9am + 2 * WEEK));
+    // fades out without requests
+    assertEquals(0, history.getExpectedRequests(myMonday9am + 6 * WEEK));
+  }
+
+  public void should_persist_history() {
+    final VmwareDemandHistory history = new VmwareDemandHistory(myFile);
+    for (int i = 0; i < 4; i++) {
+      history.recordRequest(myMonday9am + WEEK + i * 60 * 1000);
+    }
+    history.save();
+    assertTrue(myFile.exists());
+
+    assertEquals(2, new VmwareDemandHistory(myFile).getExpectedRequests(myMonday9am + 2 * WEEK));
+  }
+}
@@ -2,6 +2,7 @@ package jetbrains.buildServer.clouds.vmware.connector;
 
 import com.intellij.openapi.util.Pair;
 import com.vmware.vim25.*;
+import com.vmware.vim25.mo.ComputeResource;
 import com.vmware.vim25.mo.Datacenter;
 import com.vmware.vim25.mo.Folder;
 import com.vmware.vim25.mo.ManagedEntity;
@@ -138,6 +139,96 @@ public class VmwareApiConnectorTest extends BaseTestCase {
     }
   }
 
+  public void resource_pools_enumeration_uses_properties_only() throws Exception{
+    final List<ManagedObjectReference> createdEntities = new ArrayList<>();
+    final VMWareApiConnector connector = new VMWareApiConnectorImpl(new URL("http://localhost:9999"),"username","pwd",null, null, null){
+
+      private final Datacenter myDc = new Datacenter(null, null){
+        @Override
+        public ManagedObjectReference getMOR() {
+          ManagedObjectReference mor = new ManagedObjectReference();
+          mor.setType("Datacenter");
+          mor.setVal("datacenter-2");
+          return mor;
+        }
+      };
+
+      @Override
+      protected <T extends ManagedEntity> Collection<T> findAllEntitiesOld(final Class<T> instanceType) throws VmwareCheckedCloudException {
+        if (instanceType == Datacenter.class){
+          return Arrays.asList((T)myDc);
+        }
+        return null;
+      }
+
+      @Override
+      protected <T extends ManagedEntity> T createExactManagedEntity(final ManagedObjectReference mor) {
+        if ("Datacenter".equals(mor.getType())) {
+          return (T)myDc;
+        }
+        createdEntities.add(mor);
+        return null;
+      }
+
+      @Override
+      protected ObjectContent[] getObjectContents(final Datacenter dc, final String[][] typeinfo) throws RemoteException {
+        assertEquals("datacenter-2", dc.getMOR().getVal());
+        ManagedObjectReference parentMOR = new ManagedObjectReference();
+        parentMOR.setType("Folder");
+        parentMOR.setVal("group-v1");
+        final List<ObjectContent> retval = new ArrayList<>();
+        if (typeinfo.length > 1) {
+          // path resolution query
+          retval.add(createObjectContent("Folder", "group-v1", Pair.create("name", "MyFolder"), Pair.create("parent", null)));
+        }
+        for (int i = 0; i < 100; i++) {
+          retval.add(createObjectContent("ResourcePool", "resgroup-" + (i + 2), Pair.create("name", "MyRespool" + i), Pair.create("parent", parentMOR)));
+        }
+        return retval.toArray(new ObjectContent[retval.size()]);
+      }
+    };
+
+    final List<ResourcePoolBean> pools = connector.getResourcePools();
+    assertEquals(100, pools.size());
+    for (ResourcePoolBean pool : pools) {
+      assertTrue(pool.getPath().startsWith("MyFolder/MyRespool"));
+    }
+    assertEquals(Collections.emptyList(), createdEntities);
+  }
+
+  public void inventory_paths_match_full_mor_paths() throws Exception{
+    final VMWareApiConnectorImpl connector = new VMWareApiConnectorImpl(new URL("http://localhost:9999"),"username","pwd",null, null, null);
+
+    final Folder rootFolder = createEntity(Folder.class, null, "group-d101", "Datacenters");
+    final Datacenter dc = createEntity(Datacenter.class, rootFolder, "datacenter-102", "DC");
+    final Folder vmFolder = createEntity(Folder.class, dc, "group-v103", "vm");
+    final Folder tcFolder = createEntity(Folder.class, vmFolder, "group-v104", "teamcity");
+    final Folder agentsFolder = createEntity(Folder.class, tcFolder, "group-v105", "agents");
+    final Folder hostFolder = createEntity(Folder.class, dc, "group-h106", "host");
+    final Folder clustersFolder = createEntity(Folder.class, hostFolder, "group-h107", "clusters");
+    final ComputeResource cluster = createEntity(ComputeResource.class, clustersFolder, "domain-c108", "Cluster");
+    final ResourcePool rootPool = createEntity(ResourcePool.class, cluster, "resgroup-109", "Resources");
+    final ResourcePool pool = createEntity(ResourcePool.class, rootPool, "resgroup-110", "pool");
+    final ResourcePool nestedPool = createEntity(ResourcePool.class, pool, "resgroup-111", "nested");
+
+    // the root folder is above the datacenter and isn't returned by the datacenter query
+    final List<ManagedEntity> entities = Arrays.asList(
+      dc, vmFolder, tcFolder, agentsFolder, hostFolder, clustersFolder, cluster, rootPool, pool, nestedPool);
+    final ObjectContent[] ocs = entities.stream()
+      .map(e -> createObjectContent(e.getMOR().getType(), e.getMOR().getVal(),
+                                    Pair.create("name", e.getName()), Pair.create("parent", e.getParent().getMOR())))
+      .toArray(ObjectContent[]::new);
+    final VmwareInventoryPaths paths = new VmwareInventoryPaths(ocs, mor -> {
+      fail("Unexpected fallback for " + mor.getVal());
+      return null;
+    });
+
+    for (ManagedEntity entity : entities) {
+      assertEquals(connector.getFullMORPath(entity, dc), paths.getPath(entity.getMOR()));
+    }
+    assertEquals("DC/teamcity/agents", paths.getPath(agentsFolder.getMOR()));
+    assertEquals("DC/Cluster/pool/nested", paths.getPath(nestedPool.getMOR()));
+  }
 
   private static ObjectContent createObjectContent(final String type, final String value, Pair<String, Object>... props){
     final ObjectContent oc = new ObjectContent();
@@ -188,6 +279,32 @@ public class VmwareApiConnectorTest extends BaseTestCase {
         }
       };
     }
+    if (type==Datacenter.class){
+      return (T)new Datacenter(null, mor){
+        @Override
+        public ManagedEntity getParent() {
+          return parent;
+        }
+
+        @Override
+        public String getName() {
+          return name;
+        }
+      };
+    }
+    if (type==ComputeResource.class){
+      return (T)new ComputeResource(null, mor){
+        @Override
+        public ManagedEntity getParent() {
+          return parent;
+        }
+
+        @Override
+        public String getName() {
+          return name;
+        }
+      };
+    }
     throw new IllegalArgumentException("can't create instance of type " + type.getSimpleName());
   }
 }
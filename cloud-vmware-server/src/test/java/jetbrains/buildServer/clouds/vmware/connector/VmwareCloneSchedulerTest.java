@@ -0,0 +1,71 @@
+package jetbrains.buildServer.clouds.vmware.connector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.clouds.vmware.VmwareConstants;
+import org.testng.annotations.Test;
+
+@Test
+public class VmwareCloneSchedulerTest extends BaseTestCase {
+  private static final Executor SAME_THREAD = Runnable::run;
+
+  public void should_limit_clones_per_host_and_datastore() {
+    setInternalProperty(VmwareConstants.CLONE_LIMIT_PER_HOST, "1");
+    setInternalProperty(VmwareConstants.CLONE_LIMIT_PER_DATASTORE, "2");
+    final VmwareCloneScheduler scheduler = VmwareCloneScheduler.getInstance("should_limit_clones_per_host_and_datastore");
+    final List<String> started = new ArrayList<>();
+    final List<Runnable> releases = new ArrayList<>();
+
+    submit(scheduler, "clone1", started, releases, VmwareCloneScheduler.hostResource("h1"), VmwareCloneScheduler.datastoreResource("ds1"));
+    submit(scheduler, "clone2", started, releases, VmwareCloneScheduler.hostResource("h1"), VmwareCloneScheduler.datastoreResource("ds1"));
+    submit(scheduler, "clone3", started, releases, VmwareCloneScheduler.hostResource("h2"), VmwareCloneScheduler.datastoreResource("ds1"));
+    submit(scheduler, "clone4", started, releases, VmwareCloneScheduler.hostResource("h3"), VmwareCloneScheduler.datastoreResource("ds1"));
+    // the busy host doesn't hold the clones on the other ones
+    assertEquals(Arrays.asList("clone1", "clone3"), started);
+    assertEquals(2, scheduler.getQueueSize());
+    assertEquals(2, scheduler.getRunningCount());
+
+    releases.get(0).run();
+    // released twice by mistake
+    releases.get(0).run();
+    assertEquals(Arrays.asList("clone1", "clone3", "clone2"), started);
+    assertEquals(1, scheduler.getQueueSize());
+
+    releases.get(1).run();
+    releases.get(2).run();
+    assertEquals(Arrays.asList("clone1", "clone3", "clone2", "clone4"), started);
+    assertEquals(0, scheduler.getQueueSize());
+    assertEquals(1, scheduler.getRunningCount());
+  }
+
+  public void should_limit_clones_per_vcenter() {
+    setInternalProperty(VmwareConstants.CLONE_LIMIT_PER_VCENTER, "2");
+    assertTrue(VmwareCloneScheduler.isEnabled());
+    final VmwareCloneScheduler scheduler = VmwareCloneScheduler.getInstance("should_limit_clones_per_vcenter");
+    final List<String> started = new ArrayList<>();
+    final List<Runnable> releases = new ArrayList<>();
+    for (int i = 1; i <= 3; i++) {
+      submit(scheduler, "clone" + i, started, releases);
+    }
+    assertEquals(Arrays.asList("clone1", "clone2"), started);
+
+    releases.get(1).run();
+    assertEquals(Arrays.asList("clone1", "clone2", "clone3"), started);
+    assertEquals(3, releases.size());
+  }
+
+  private static void submit(final VmwareCloneScheduler scheduler,
+                             final String name,
+                             final List<String> started,
+                             final List<Runnable> releases,
+                             final String... resources) {
+    scheduler.submit(name, resources.length == 0 ? Collections.emptyList() : Arrays.asList(resources), SAME_THREAD, release -> {
+      started.add(name);
+      releases.add(release);
+    });
+  }
+}
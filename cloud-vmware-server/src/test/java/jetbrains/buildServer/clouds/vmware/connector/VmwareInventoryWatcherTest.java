@@ -0,0 +1,171 @@
+package jetbrains.buildServer.clouds.vmware.connector;
+
+import com.vmware.vim25.*;
+import com.vmware.vim25.mo.Datacenter;
+import java.util.*;
+import java.util.stream.Collectors;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.clouds.vmware.stubs.FakePropertyCollector;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class VmwareInventoryWatcherTest extends BaseTestCase {
+
+  private FakePropertyCollector.FakeSession mySession;
+  private VmwareInventoryWatcher myWatcher;
+  private int myVersion;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mySession = FakePropertyCollector.createSession();
+    myWatcher = new VmwareInventoryWatcher(new String[]{"VirtualMachine", "name", "runtime.powerState"});
+    myVersion = 0;
+  }
+
+  public void should_apply_enter_modify_and_leave_updates() throws Exception {
+    myWatcher.attach(mySession.getServiceInstance(), Collections.singletonList(createDatacenter("dc1")));
+    assertTrue(myWatcher.isAttachedTo(mySession.getServiceInstance()));
+    final FakePropertyCollector collector = mySession.getCollector();
+    final String filter = filterId(0);
+
+    collector.addUpdate(createUpdateSet(false,
+                                        createFilterUpdate(filter,
+                                                           createObjectUpdate(ObjectUpdateKind.enter, "vm-1", change("name", "agent-1"), change("runtime.powerState", VirtualMachinePowerState.poweredOff)),
+                                                           createObjectUpdate(ObjectUpdateKind.enter, "vm-2", change("name", "agent-2")))));
+    Map<String, VmwareInventoryWatcher.ObjectState> states = sync();
+    assertEquals(2, states.size());
+    assertEquals("agent-1", states.get("vm-1").getProperties().get("name"));
+    assertEquals(VirtualMachinePowerState.poweredOff, states.get("vm-1").getProperties().get("runtime.powerState"));
+    assertEquals("dc1", states.get("vm-1").getDatacenterId());
+    final VmwareInventoryWatcher.ObjectState previousState = states.get("vm-1");
+
+    collector.addUpdate(createUpdateSet(false,
+                                        createFilterUpdate(filter,
+                                                           createObjectUpdate(ObjectUpdateKind.modify, "vm-1", change("runtime.powerState", VirtualMachinePowerState.poweredOn)),
+                                                           createObjectUpdate(ObjectUpdateKind.leave, "vm-2"))));
+    states = sync();
+    assertEquals(1, states.size());
+    assertEquals("agent-1", states.get("vm-1").getProperties().get("name"));
+    assertEquals(VirtualMachinePowerState.poweredOn, states.get("vm-1").getProperties().get("runtime.powerState"));
+    // the states returned earlier are snapshots
+    assertEquals(VirtualMachinePowerState.poweredOff, previousState.getProperties().get("runtime.powerState"));
+
+    // nothing has changed
+    states = sync();
+    assertEquals(1, states.size());
+  }
+
+  public void should_read_all_truncated_update_sets() throws Exception {
+    myWatcher.attach(mySession.getServiceInstance(), Collections.singletonList(createDatacenter("dc1")));
+    final FakePropertyCollector collector = mySession.getCollector();
+    collector.addUpdate(createUpdateSet(true, createFilterUpdate(filterId(0), createObjectUpdate(ObjectUpdateKind.enter, "vm-1", change("name", "agent-1")))));
+    collector.addUpdate(createUpdateSet(false, createFilterUpdate(filterId(0), createObjectUpdate(ObjectUpdateKind.enter, "vm-2", change("name", "agent-2")))));
+
+    final Map<String, VmwareInventoryWatcher.ObjectState> states = sync();
+    assertEquals(new HashSet<>(Arrays.asList("vm-1", "vm-2")), states.keySet());
+  }
+
+  public void should_rescan_when_version_is_not_valid() throws Exception {
+    myWatcher.attach(mySession.getServiceInstance(), Collections.singletonList(createDatacenter("dc1")));
+    final FakePropertyCollector collector = mySession.getCollector();
+    collector.addUpdate(createUpdateSet(false, createFilterUpdate(filterId(0),
+                                                                  createObjectUpdate(ObjectUpdateKind.enter, "vm-1", change("name", "agent-1")),
+                                                                  createObjectUpdate(ObjectUpdateKind.enter, "vm-2", change("name", "agent-2")))));
+    assertEquals(2, sync().size());
+
+    collector.addFailure(new InvalidCollectorVersion());
+    // the full rescan doesn't have the VM deleted meanwhile
+    collector.addUpdate(createUpdateSet(false, createFilterUpdate(filterId(0), createObjectUpdate(ObjectUpdateKind.enter, "vm-1", change("name", "agent-1")))));
+    final Map<String, VmwareInventoryWatcher.ObjectState> states = sync();
+    assertEquals(Collections.singleton("vm-1"), states.keySet());
+  }
+
+  public void should_watch_datacenters_added_after_attach() throws Exception {
+    final Datacenter dc1 = createDatacenter("dc1");
+    final Datacenter dc2 = createDatacenter("dc2");
+    myWatcher.attach(mySession.getServiceInstance(), Collections.singletonList(dc1));
+    final FakePropertyCollector collector = mySession.getCollector();
+    assertEquals(1, collector.getCreatedFilters().size());
+
+    myWatcher.updateDatacenters(Arrays.asList(dc1, dc2));
+    assertEquals(2, collector.getCreatedFilters().size());
+    assertEquals("dc2", collector.getCreatedFilters().get(1).getSpec().getObjectSet()[0].getObj().getVal());
+    collector.addUpdate(createUpdateSet(false,
+                                        createFilterUpdate(filterId(0), createObjectUpdate(ObjectUpdateKind.enter, "vm-1", change("name", "agent-1"))),
+                                        createFilterUpdate(filterId(1), createObjectUpdate(ObjectUpdateKind.enter, "vm-2", change("name", "agent-2")))));
+    Map<String, VmwareInventoryWatcher.ObjectState> states = sync();
+    assertEquals("dc1", states.get("vm-1").getDatacenterId());
+    assertEquals("dc2", states.get("vm-2").getDatacenterId());
+
+    // the same list again doesn't create filters
+    myWatcher.updateDatacenters(Arrays.asList(dc1, dc2));
+    assertEquals(2, collector.getCreatedFilters().size());
+
+    myWatcher.updateDatacenters(Collections.singletonList(dc2));
+    assertTrue(collector.getCreatedFilters().get(0).isDestroyed());
+    assertFalse(collector.getCreatedFilters().get(1).isDestroyed());
+    states = sync();
+    assertEquals(Collections.singleton("vm-2"), states.keySet());
+  }
+
+  public void should_destroy_collector_on_detach() throws Exception {
+    myWatcher.attach(mySession.getServiceInstance(), Collections.singletonList(createDatacenter("dc1")));
+    final FakePropertyCollector collector = mySession.getCollector();
+    myWatcher.detach();
+    assertTrue(collector.isDestroyed());
+    assertFalse(myWatcher.isAttachedTo(mySession.getServiceInstance()));
+  }
+
+  private Map<String, VmwareInventoryWatcher.ObjectState> sync() throws Exception {
+    return myWatcher.sync().stream().collect(Collectors.toMap(VmwareInventoryWatcher.ObjectState::getId, s -> s));
+  }
+
+  private Datacenter createDatacenter(final String id){
+    return new Datacenter(mySession, createMor("Datacenter", id));
+  }
+
+  private static String filterId(final int idx){
+    return "filter-" + idx;
+  }
+
+  private UpdateSet createUpdateSet(final boolean truncated, final PropertyFilterUpdate... filterUpdates){
+    final UpdateSet updateSet = new UpdateSet();
+    updateSet.setVersion(String.valueOf(++myVersion));
+    updateSet.setTruncated(truncated);
+    updateSet.setFilterSet(filterUpdates);
+    return updateSet;
+  }
+
+  private static PropertyFilterUpdate createFilterUpdate(final String filterId, final ObjectUpdate... objectUpdates){
+    final PropertyFilterUpdate filterUpdate = new PropertyFilterUpdate();
+    filterUpdate.setFilter(createMor("PropertyFilter", filterId));
+    filterUpdate.setObjectSet(objectUpdates);
+    return filterUpdate;
+  }
+
+  private static ObjectUpdate createObjectUpdate(final ObjectUpdateKind kind, final String vmId, final PropertyChange... changes){
+    final ObjectUpdate objectUpdate = new ObjectUpdate();
+    objectUpdate.setKind(kind);
+    objectUpdate.setObj(createMor("VirtualMachine", vmId));
+    objectUpdate.setChangeSet(changes.length == 0 ? null : changes);
+    return objectUpdate;
+  }
+
+  private static PropertyChange change(final String name, final Object value){
+    final PropertyChange change = new PropertyChange();
+    change.setName(name);
+    change.setOp(PropertyChangeOp.assign);
+    change.setVal(value);
+    return change;
+  }
+
+  private static ManagedObjectReference createMor(final String type, final String id){
+    final ManagedObjectReference mor = new ManagedObjectReference();
+    mor.setType(type);
+    mor.setVal(id);
+    return mor;
+  }
+}
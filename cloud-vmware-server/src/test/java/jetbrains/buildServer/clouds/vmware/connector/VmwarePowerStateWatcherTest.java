@@ -0,0 +1,53 @@
+package jetbrains.buildServer.clouds.vmware.connector;
+
+import com.intellij.util.WaitFor;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.mo.Task;
+import java.rmi.RemoteException;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.clouds.vmware.VmwareConstants;
+import jetbrains.buildServer.clouds.vmware.stubs.FakeVirtualMachine;
+import org.testng.annotations.Test;
+
+@Test
+public class VmwarePowerStateWatcherTest extends BaseTestCase {
+
+  public void should_complete_when_guest_is_stopped() throws RemoteException {
+    final VmwarePowerStateWatcher watcher = new VmwarePowerStateWatcher();
+    final FakeVirtualMachine vm1 = new FakeVirtualMachine("vm1", false, true);
+    final FakeVirtualMachine vm2 = new FakeVirtualMachine("vm2", false, true);
+    final Task task1 = watcher.watchShutdown("vm1", vm1);
+    final Task task2 = watcher.watchShutdown("vm2", vm2);
+    assertEquals(TaskInfoState.running, task1.getTaskInfo().getState());
+
+    vm1.shutdownGuest();
+    waitForState(task1, TaskInfoState.success);
+    assertEquals(TaskInfoState.running, task2.getTaskInfo().getState());
+  }
+
+  public void should_power_off_on_timeout() throws RemoteException {
+    setInternalProperty(VmwareConstants.SHUTDOWN_TIMEOUT, "1");
+    final VmwarePowerStateWatcher watcher = new VmwarePowerStateWatcher();
+    final FakeVirtualMachine vm = new FakeVirtualMachine("vm", false, true);
+    final Task task = watcher.watchShutdown("vm", vm);
+    assertEquals(TaskInfoState.running, task.getTaskInfo().getState());
+
+    waitForState(task, TaskInfoState.success);
+    assertEquals(VirtualMachinePowerState.poweredOff, vm.getRuntime().getPowerState());
+  }
+
+  private static void waitForState(final Task task, final TaskInfoState state) throws RemoteException {
+    new WaitFor(5000){
+      @Override
+      protected boolean condition() {
+        try {
+          return task.getTaskInfo().getState() == state;
+        } catch (RemoteException e) {
+          return false;
+        }
+      }
+    };
+    assertEquals(state, task.getTaskInfo().getState());
+  }
+}
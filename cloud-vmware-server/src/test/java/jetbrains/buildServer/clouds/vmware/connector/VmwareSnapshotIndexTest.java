@@ -0,0 +1,61 @@
+package jetbrains.buildServer.clouds.vmware.connector;
+
+import com.vmware.vim25.VirtualMachineSnapshotInfo;
+import com.vmware.vim25.VirtualMachineSnapshotTree;
+import java.util.Calendar;
+import java.util.Map;
+import jetbrains.buildServer.BaseTestCase;
+import org.testng.annotations.Test;
+
+@Test
+public class VmwareSnapshotIndexTest extends BaseTestCase {
+
+  public void should_find_latest_snapshot_by_mask() {
+    final VmwareSnapshotIndex index = new VmwareSnapshotIndex();
+    final VirtualMachineSnapshotTree snap1 = createSnapshot("snap1", 1000);
+    final VirtualMachineSnapshotTree snap2 = createSnapshot("snap2", 2000);
+    final VirtualMachineSnapshotTree other = createSnapshot("other", 3000);
+    snap1.setChildSnapshotList(new VirtualMachineSnapshotTree[]{snap2, other});
+    final VirtualMachineSnapshotInfo info = createInfo(snap1);
+
+    assertEquals("snap2", index.getLatestSnapshot("vm-1", info, "snap*"));
+    assertEquals("other", index.getLatestSnapshot("vm-1", info, "*"));
+    assertEquals("snap1", index.getLatestSnapshot("vm-1", info, "snap1"));
+    assertNull(index.getLatestSnapshot("vm-1", info, "snap3"));
+    assertNull(index.getLatestSnapshot("vm-1", info, "abc*"));
+    assertNull(index.getLatestSnapshot("vm-1", null, "snap*"));
+    assertEquals(3, index.getSnapshots("vm-1", info).size());
+  }
+
+  public void should_rebuild_index_when_snapshots_change() {
+    final VmwareSnapshotIndex index = new VmwareSnapshotIndex();
+    final VirtualMachineSnapshotTree snap1 = createSnapshot("snap1", 1000);
+    final Map<String, VirtualMachineSnapshotTree> snapshots = index.getSnapshots("vm-1", createInfo(snap1));
+    assertEquals("snap1", index.getLatestSnapshot("vm-1", createInfo(snap1), "snap*"));
+    // the same tree
+    assertSame(snapshots, index.getSnapshots("vm-1", createInfo(createSnapshot("snap1", 1000))));
+
+    snap1.setChildSnapshotList(new VirtualMachineSnapshotTree[]{createSnapshot("snap2", 2000)});
+    assertEquals("snap2", index.getLatestSnapshot("vm-1", createInfo(snap1), "snap*"));
+    assertEquals(2, index.getSnapshots("vm-1", createInfo(snap1)).size());
+
+    // renamed
+    snap1.setChildSnapshotList(new VirtualMachineSnapshotTree[]{createSnapshot("snap3", 2000)});
+    assertEquals("snap3", index.getLatestSnapshot("vm-1", createInfo(snap1), "snap*"));
+  }
+
+  private static VirtualMachineSnapshotInfo createInfo(final VirtualMachineSnapshotTree... roots) {
+    final VirtualMachineSnapshotInfo info = new VirtualMachineSnapshotInfo();
+    info.setRootSnapshotList(roots);
+    return info;
+  }
+
+  private static VirtualMachineSnapshotTree createSnapshot(final String name, final long createTime) {
+    final VirtualMachineSnapshotTree tree = new VirtualMachineSnapshotTree();
+    tree.setName(name);
+    final Calendar calendar = Calendar.getInstance();
+    calendar.setTimeInMillis(createTime);
+    tree.setCreateTime(calendar);
+    return tree;
+  }
+}
@@ -0,0 +1,96 @@
+package jetbrains.buildServer.clouds.vmware.connector;
+
+import com.vmware.vim25.*;
+import com.vmware.vim25.mo.Task;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.clouds.vmware.stubs.FakePropertyCollector;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class VmwareTasksMonitorTest extends BaseTestCase {
+
+  private FakePropertyCollector.FakeSession mySession;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mySession = FakePropertyCollector.createSession();
+  }
+
+  public void should_report_state_from_updates() throws Exception {
+    final Task task = createTask("task-1");
+    final VmwareTasksMonitor monitor = VmwareTasksMonitor.getInstance(task);
+    assertNotNull(monitor);
+
+    VmwareTasksMonitor.TaskState state = monitor.getState(task);
+    assertNotNull(state);
+    assertFalse(state.isDone());
+    assertEquals(1, monitor.getWatchedTasksCount());
+
+    final FakePropertyCollector.FakePropertyFilter filter = mySession.getCollector().getCreatedFilters().get(0);
+    mySession.getCollector().addUpdate(createUpdate(filter, TaskInfoState.success));
+    Thread.sleep(300);
+    state = monitor.getState(task);
+    assertNotNull(state);
+    assertTrue(state.isDone());
+    assertEquals(TaskInfoState.success, state.getState());
+    assertTrue(filter.isDestroyed());
+    assertEquals(0, monitor.getWatchedTasksCount());
+  }
+
+  public void should_destroy_filters_of_abandoned_tasks() throws Exception {
+    final Task task1 = createTask("task-1");
+    final Task task2 = createTask("task-2");
+    final VmwareTasksMonitor monitor = VmwareTasksMonitor.getInstance(task1);
+    assertNotNull(monitor);
+    assertNotNull(monitor.getState(task1));
+    assertNotNull(monitor.getState(task2));
+    assertEquals(2, monitor.getWatchedTasksCount());
+
+    monitor.forgetAbandoned(System.currentTimeMillis() + 1);
+    assertEquals(0, monitor.getWatchedTasksCount());
+    for (FakePropertyCollector.FakePropertyFilter filter : mySession.getCollector().getCreatedFilters()) {
+      assertTrue(filter.isDestroyed());
+    }
+  }
+
+  public void should_forget_monitor_of_disposed_session() throws Exception {
+    final Task task = createTask("task-1");
+    final VmwareTasksMonitor monitor = VmwareTasksMonitor.getInstance(task);
+    assertNotNull(monitor);
+    assertNotNull(monitor.getState(task));
+    assertSame(monitor, VmwareTasksMonitor.getInstance(task));
+
+    VmwareTasksMonitor.dispose(mySession);
+    assertTrue(mySession.getCollector().isDestroyed());
+    assertEquals(0, monitor.getWatchedTasksCount());
+    assertNull(monitor.getState(task));
+    assertNull(VmwareTasksMonitor.getInstance(task));
+  }
+
+  private Task createTask(final String id){
+    final ManagedObjectReference mor = new ManagedObjectReference();
+    mor.setType("Task");
+    mor.setVal(id);
+    return new Task(mySession, mor);
+  }
+
+  private static UpdateSet createUpdate(final FakePropertyCollector.FakePropertyFilter filter, final TaskInfoState state){
+    final PropertyChange change = new PropertyChange();
+    change.setName("info.state");
+    change.setOp(PropertyChangeOp.assign);
+    change.setVal(state);
+    final ObjectUpdate objectUpdate = new ObjectUpdate();
+    objectUpdate.setKind(ObjectUpdateKind.modify);
+    objectUpdate.setChangeSet(new PropertyChange[]{change});
+    final PropertyFilterUpdate filterUpdate = new PropertyFilterUpdate();
+    filterUpdate.setFilter(filter.getMOR());
+    filterUpdate.setObjectSet(new ObjectUpdate[]{objectUpdate});
+    final UpdateSet updateSet = new UpdateSet();
+    updateSet.setVersion(String.valueOf(System.nanoTime()));
+    updateSet.setFilterSet(new PropertyFilterUpdate[]{filterUpdate});
+    return updateSet;
+  }
+}
@@ -1,7 +1,9 @@
 package jetbrains.buildServer.clouds.vmware.stubs;
 
 import com.google.gson.internal.bind.ReflectiveTypeAdapterFactory;
+import com.vmware.vim25.ArrayOfVirtualMachineSnapshotTree;
 import com.vmware.vim25.CustomizationSpec;
+import com.vmware.vim25.ManagedObjectReference;
 import com.vmware.vim25.mo.*;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -55,6 +57,25 @@ public class FakeApiConnector extends VMWareApiConnectorImpl {
     return  (dc == null || dc == getParentDC(t)) ? t : null;
   }
 
+  @Override
+  protected <T extends ManagedEntity> T createExactManagedEntity(final ManagedObjectReference mor) {
+    if (Datacenter.class.getSimpleName().equals(mor.getType())) {
+      return (T)FakeModel.instance().getDatacenters().values()
+                         .stream()
+                         .filter(dc -> mor.getVal().equals(dc.getMOR().getVal()))
+                         .findAny()
+                         .orElse(null);
+    }
+    if (!VirtualMachine.class.getSimpleName().equals(mor.getType())) {
+      throw new IllegalArgumentException("Unsupported entity type: " + mor.getType());
+    }
+    return (T)FakeModel.instance().getVms().values()
+                       .stream()
+                       .filter(vm -> vm.getMOR() != null && mor.getVal().equals(vm.getMOR().getVal()))
+                       .findAny()
+                       .orElse(null);
+  }
+
   @Override
   protected <T extends ManagedEntity> Collection<T> findAllEntitiesOld(final Class<T> instanceType) throws VmwareCheckedCloudException {
     test();
@@ -90,6 +111,24 @@ public class FakeApiConnector extends VMWareApiConnectorImpl {
     return names.stream().map(name -> FakeModel.instance().getVirtualMachine(name)).collect(Collectors.toMap(VirtualMachine::getName,Function.identity()));
   }
 
+  @NotNull
+  @Override
+  protected Map<String, Map<String, Object>> retrieveSourceVmsProperties(@NotNull final Collection<VirtualMachine> vms) throws VmwareCheckedCloudException {
+    final Map<String, Map<String, Object>> result = new HashMap<>();
+    for (VirtualMachine vm : vms) {
+      final Map<String, Object> properties = new HashMap<>();
+      properties.put("name", vm.getName());
+      if (vm.getSnapshot() != null) {
+        // the same wrapper as vCenter returns
+        final ArrayOfVirtualMachineSnapshotTree rootSnapshotList = new ArrayOfVirtualMachineSnapshotTree();
+        rootSnapshotList.setVirtualMachineSnapshotTree(vm.getSnapshot().getRootSnapshotList());
+        properties.put("snapshot.rootSnapshotList", rootSnapshotList);
+      }
+      result.put(vm.getMOR().getVal(), properties);
+    }
+    return result;
+  }
+
   @NotNull
   @Override
   public Collection<VmwareInstance> findAllVirtualMachines() throws VmwareCheckedCloudException {
@@ -56,7 +56,8 @@ public class FakeDatacenter extends Datacenter {
     return new ManagedObjectReference(){
       @Override
       public String getVal() {
-        return "datacenter-10";
+        // the datacenters are found by their references when the connector binds them to a session
+        return "datacenter-" + name;
       }
 
       @Override
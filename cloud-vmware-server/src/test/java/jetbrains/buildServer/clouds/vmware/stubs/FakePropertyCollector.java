@@ -0,0 +1,156 @@
+/*
+ *
+ *  * Copyright 2000-2017 JetBrains s.r.o.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package jetbrains.buildServer.clouds.vmware.stubs;
+
+import com.vmware.vim25.*;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.PropertyFilter;
+import com.vmware.vim25.mo.ServerConnection;
+import com.vmware.vim25.mo.ServiceInstance;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Property collector of a fake session. The updates are queued by the test and returned by the subsequent WaitForUpdatesEx calls
+ */
+public class FakePropertyCollector extends PropertyCollector {
+  private final List<FakePropertyFilter> myFilters = new ArrayList<>();
+  private final Deque<Object> myUpdates = new ArrayDeque<>();
+  private FakePropertyCollector myCreatedCollector;
+  private boolean myDestroyed;
+  private int myFilterCounter;
+
+  private FakePropertyCollector(final ServerConnection serverConnection, final String id) {
+    super(serverConnection, createMor("PropertyCollector", id));
+  }
+
+  /**
+   * @return session whose property collector creates the fake collectors
+   */
+  public static FakeSession createSession() {
+    try {
+      return new FakeSession();
+    } catch (MalformedURLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public void addUpdate(final UpdateSet updateSet) {
+    myUpdates.add(updateSet);
+  }
+
+  public void addFailure(final RemoteException failure) {
+    myUpdates.add(failure);
+  }
+
+  public List<FakePropertyFilter> getCreatedFilters() {
+    return myFilters;
+  }
+
+  public boolean isDestroyed() {
+    return myDestroyed;
+  }
+
+  @Override
+  public PropertyCollector createPropertyCollector() {
+    myCreatedCollector = new FakePropertyCollector(getServerConnection(), "session[" + System.nanoTime() + "]");
+    return myCreatedCollector;
+  }
+
+  @Override
+  public PropertyFilter createFilter(final PropertyFilterSpec spec, final boolean partialUpdates) {
+    final FakePropertyFilter filter = new FakePropertyFilter(getServerConnection(), "filter-" + myFilterCounter++, spec);
+    myFilters.add(filter);
+    return filter;
+  }
+
+  @Override
+  public UpdateSet waitForUpdatesEx(final String version, final WaitOptions options) throws RemoteException {
+    final Object update = myUpdates.poll();
+    if (update instanceof RemoteException)
+      throw (RemoteException)update;
+    return (UpdateSet)update;
+  }
+
+  @Override
+  public void destroyPropertyCollector() {
+    myDestroyed = true;
+  }
+
+  private static ManagedObjectReference createMor(final String type, final String id){
+    final ManagedObjectReference mor = new ManagedObjectReference();
+    mor.setType(type);
+    mor.setVal(id);
+    return mor;
+  }
+
+  public static class FakeSession extends ServerConnection {
+    private final FakePropertyCollector myRootCollector = new FakePropertyCollector(this, "propertyCollector");
+    private final ServiceInstance myServiceInstance = new ServiceInstance(this){
+      @Override
+      public PropertyCollector getPropertyCollector() {
+        return myRootCollector;
+      }
+    };
+
+    private FakeSession() throws MalformedURLException {
+      super(new URL("https://localhost/sdk"), null, null);
+    }
+
+    @Override
+    public ServiceInstance getServiceInstance() {
+      return myServiceInstance;
+    }
+
+    /**
+     * @return the latest collector created with this session
+     */
+    public FakePropertyCollector getCollector() {
+      return myRootCollector.myCreatedCollector;
+    }
+  }
+
+  public static class FakePropertyFilter extends PropertyFilter {
+    private final PropertyFilterSpec mySpec;
+    private boolean myDestroyed;
+
+    private FakePropertyFilter(final ServerConnection serverConnection, final String id, final PropertyFilterSpec spec) {
+      super(serverConnection, createMor("PropertyFilter", id));
+      mySpec = spec;
+    }
+
+    public PropertyFilterSpec getSpec() {
+      return mySpec;
+    }
+
+    public boolean isDestroyed() {
+      return myDestroyed;
+    }
+
+    @Override
+    public void destroyPropertyFilter() {
+      myDestroyed = true;
+    }
+  }
+}